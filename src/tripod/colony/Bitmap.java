@@ -4,6 +4,7 @@ import java.io.*;
 
 import java.awt.geom.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -17,10 +18,13 @@ import javax.imageio.*;
 import com.sun.media.jai.codec.*;
 
 /**
- * A bitmap image
+ * A bitmap image. Pixels are packed 64 to a word with each row starting
+ * on a word boundary; within a word the leftmost pixel is the most
+ * significant bit so that the big-endian byte order of a row matches
+ * the packing of MultiPixelPackedSampleModel.
  */
 public class Bitmap implements Serializable, TIFFTags {
-    private static final long serialVersionUID = 0x5f1f54d8fed49ab3l;
+    private static final long serialVersionUID = 0x5f1f54d8fed49ab4l;
     private static final Logger logger =
         Logger.getLogger (Bitmap.class.getName ());
 
@@ -156,6 +160,14 @@ public class Bitmap implements Serializable, TIFFTags {
             return newPt;
         }
 
+        // add a code without checking for a revisited coordinate
+        void append (ChainCode code) {
+            Point2D pt = coords.getLast ();
+            coords.add (new Point ((int) pt.getX () + code.dx (),
+                                   (int) pt.getY () + code.dy ()));
+            codes.add (code);
+        }
+
         public boolean contains (double x, double y) {
             for (Point2D pt : coords) {
                 if (Math.abs (pt.getX () - x) < EPS
@@ -393,28 +405,23 @@ public class Bitmap implements Serializable, TIFFTags {
         }
     }
 
-    private byte[] data; // pixel values
+    final long[] words; // pixel values
     private int width, height;
-    private int scanline;
+    private int scanline; // bytes per row
+    private int wordline; // words per row
     private SampleModel sampleModel;
 
     /*
      * calculate the pixel density within a given region of interest
      */
     public double calcDensity (Shape roi) {
-        Rectangle rect = roi.getBounds();
-
-        int count = 0, area = 0;
-        int x1 = Math.min(width, rect.x + rect.width);
-        int y1 = Math.min(height, rect.y + rect.height);
-        for (int x0 = rect.x; x0 < x1; ++x0)
-            for (int y0 = rect.y; y0 < y1; ++y0) {
-                boolean inShape = roi.contains(x0, y0);
-                if (isOn (x0, y0) && inShape) 
-                    ++count;
-                if (inShape) ++area;
-            }
+        Spans spans = new Spans (roi, new Rectangle (0, 0, width, height));
+        long count = 0;
+        for (int y = spans.ymin (); y < spans.ymax (); ++y)
+            for (int i = spans.first (y), j = spans.first (y + 1); i < j; ++i)
+                count += count (y, spans.x0 (i), spans.x1 (i));
 
+        long area = spans.area ();
         return area > 0 ? (double)count/area : 0.;
     }
 
@@ -437,7 +444,7 @@ public class Bitmap implements Serializable, TIFFTags {
     // create an empty image
     public Bitmap (Bitmap copy) {
         this (copy.width, copy.height);
-        System.arraycopy (copy.data, 0, this.data, 0, this.data.length);
+        System.arraycopy (copy.words, 0, this.words, 0, this.words.length);
     }
 
     public Bitmap (int width, int height) {
@@ -445,18 +452,40 @@ public class Bitmap implements Serializable, TIFFTags {
         this.height = height;
 
         scanline = (width + 7) >> 3;
-        data = new byte[scanline * height];
+        wordline = (width + 63) >> 6;
+        words = new long[wordline * height];
         sampleModel = new MultiPixelPackedSampleModel
             (DataBuffer.TYPE_BYTE, width, height, 1, scanline, 0);
     }
 
+    /*
+     * create a bitmap from packed bytes (8 pixels per byte, most
+     * significant bit first) with scanline bytes per row
+     */
+    public Bitmap (int width, int height, byte[] data) {
+        this (width, height);
+        if (data.length < scanline * height)
+            throw new IllegalArgumentException
+                ("Not enough data for "+width+"x"+height+" bitmap");
+
+        for (int y = 0; y < height; ++y) {
+            int band = y * scanline, row = y * wordline;
+            for (int i = 0; i < scanline; ++i)
+                words[row + (i >> 3)] |=
+                    (data[band + i] & 0xffl) << (56 - ((i & 7) << 3));
+            words[row + wordline - 1] &= tailMask ();
+        }
+    }
+
     public Bitmap (Shape shape) {
         this (shape.getBounds().width, shape.getBounds().height);
         Rectangle r = shape.getBounds();
+        Spans spans = new Spans (shape, r);
         for (int y = 0; y < height; ++y)
-            for (int x = 0; x < width; ++x)
-                if (shape.contains(r.x+x, r.y+y))
-                    set (x, y, true);
+            for (int i = spans.first (r.y + y), j = spans.first (r.y + y + 1);
+                 i < j; ++i)
+                setBits (words, y * wordline,
+                         spans.x0 (i) - r.x, spans.x1 (i) - r.x);
     }
 
     public Object clone () {
@@ -466,76 +495,256 @@ public class Bitmap implements Serializable, TIFFTags {
     public int width () { return width; }
     public int height () { return height; }
     public int scanline () { return scanline; }
+    public int wordline () { return wordline; }
     public void clear () {
-        for (int i = 0; i < data.length; ++i)
-            data[i] = 0;
+        Arrays.fill (words, 0l);
     }
 
     public long area () {
         long area = 0l;
-        for (int i = 0; i < data.length; ++i)
-            area += Integer.bitCount(data[i] & 0xff);
+        for (int i = 0; i < words.length; ++i)
+            area += Long.bitCount (words[i]);
         return area;
     }
+
+    // mask of the valid pixels in the last word of a row
+    long tailMask () {
+        int r = width & 63;
+        return r == 0 ? -1l : -1l << (64 - r);
+    }
+
+    /*
+     * return the packed bytes (8 pixels per byte, most significant bit
+     * first) with scanline bytes per row; this is the layout expected
+     * by getSampleModel()
+     */
+    public byte[] toByteArray () {
+        byte[] data = new byte[scanline * height];
+        for (int y = 0; y < height; ++y) {
+            int band = y * scanline, row = y * wordline;
+            for (int i = 0; i < scanline; ++i)
+                data[band + i] = (byte) (words[row + (i >> 3)]
+                                         >>> (56 - ((i & 7) << 3)));
+        }
+        return data;
+    }
+
+    /*
+     * copy nrows rows starting at row sy of src into this bitmap starting
+     * at row dy; rows are truncated or zero extended if the widths differ
+     */
+    public void copyRows (Bitmap src, int sy, int dy, int nrows) {
+        if (sy < 0 || dy < 0 || sy + nrows > src.height
+            || dy + nrows > height)
+            throw new IllegalArgumentException
+                ("Invalid row range: "+sy+" -> "+dy+" ("+nrows+")");
+
+        if (src.width == width) {
+            System.arraycopy (src.words, sy * wordline,
+                              words, dy * wordline, nrows * wordline);
+        }
+        else {
+            int n = Math.min (wordline, src.wordline);
+            long tail = tailMask ();
+            for (int i = 0; i < nrows; ++i) {
+                int row = (dy + i) * wordline;
+                System.arraycopy (src.words, (sy + i) * src.wordline,
+                                  words, row, n);
+                Arrays.fill (words, row + n, row + wordline, 0l);
+                words[row + wordline - 1] &= tail;
+            }
+        }
+    }
     
+    /*
+     * number of pixels on in each row
+     */
     public int[] horizontalHistogram () {
-        int[] hist = new int[height];
-        for (int i = 0; i < height; ++i) 
-            for (int j = 0; j < width; ++j)
-                hist[i] += isOn (j, i) ? 1 : 0;
-        return hist;
+        return horizontalHistogram (0, 0, width, height);
     }
 
+    /*
+     * number of pixels on in each column
+     */
     public int[] verticalHistogram () {
-        int[] hist = new int[width];
-        for (int i = 0; i < width; ++i)
-            for (int j = 0; j < height; ++j)
-                hist[i] += isOn (i, j) ? 1 : 0;
+        return verticalHistogram (0, 0, width, height);
+    }
+
+    /*
+     * row counts of the w x h rectangle at (x,y); hist[i] is the count
+     * of row y+i and pixels outside of the bitmap are off
+     */
+    public int[] horizontalHistogram (int x, int y, int w, int h) {
+        int[] hist = new int[h];
+        histograms (x, y, w, h, hist, null);
         return hist;
     }
 
+    public int[] verticalHistogram (int x, int y, int w, int h) {
+        int[] hist = new int[w];
+        histograms (x, y, w, h, null, hist);
+        return hist;
+    }
+
+    /*
+     * both the horizontal and vertical histograms in one pass
+     */
+    public int[][] histograms () {
+        return histograms (0, 0, width, height);
+    }
+
+    public int[][] histograms (int x, int y, int w, int h) {
+        int[][] hist = new int[][]{new int[h], new int[w]};
+        histograms (x, y, w, h, hist[0], hist[1]);
+        return hist;
+    }
+
+    /*
+     * SPREAD[b] has byte i (most significant first) set to bit 7-i of
+     * b, i.e., the 8 pixels of a byte spread out into 8 byte counters
+     */
+    static final long[] SPREAD = new long[256];
+    static {
+        for (int b = 0; b < 256; ++b)
+            for (int i = 0; i < 8; ++i)
+                if ((b & (0x80 >> i)) != 0)
+                    SPREAD[b] |= 1l << (56 - 8 * i);
+    }
+
+    /*
+     * rows and cols (either can be null) get the row and column counts
+     * of the rectangle. Rows are popcounts; for columns each byte of a
+     * row adds SPREAD[byte] to a word of 8 byte counters, which are
+     * flushed into cols before they can overflow.
+     */
+    void histograms (int x, int y, int w, int h, int[] rows, int[] cols) {
+        int y0 = Math.max (0, y), y1 = Math.min (height, y + h);
+        int x0 = Math.max (0, x), x1 = Math.min (width, x + w);
+        if (rows != null) {
+            for (int j = y0; j < y1; ++j)
+                rows[j - y] = count (j, x0, x1);
+        }
+
+        if (cols == null || x0 >= x1)
+            return;
+
+        int nwords = (w + 63) >> 6;
+        long tail = (w & 63) == 0 ? -1l : -1l << (64 - (w & 63));
+        long[] acc = new long[nwords << 3];
+        for (int j = y0, n = 0; j < y1; ++j) {
+            for (int k = 0; k < nwords; ++k) {
+                long bits = bits (x + (k << 6), j);
+                if (k + 1 == nwords)
+                    bits &= tail;
+                for (int b = 0; bits != 0; ++b, bits <<= 8)
+                    acc[(k << 3) + b] += SPREAD[(int) (bits >>> 56)];
+            }
+
+            if (++n == 255 || j + 1 == y1) {
+                for (int g = 0; g < acc.length; ++g) {
+                    long a = acc[g];
+                    for (int i = 0; i < 8 && a != 0; ++i, a <<= 8) {
+                        int c = (g << 3) + i;
+                        if (c < w)
+                            cols[c] += (int) (a >>> 56);
+                    }
+                    acc[g] = 0l;
+                }
+                n = 0;
+            }
+        }
+    }
+
     public boolean get (int x, int y) {
         if (x >= 0 && x < width && y >= 0 && y < height) {
-            return ((data[y * scanline + x / 8] & 0xff) & MASK[x % 8]) != 0;
+            return isOn (x, y);
         }
         return false;
     }
 
-    // same as get() but without the bound checking
+    // same as get() but without the bound checking; note that the
+    // shift distance of >>> is taken modulo 64
     public boolean isOn (int x, int y) {
-        return ((data[y * scanline + x / 8] & 0xff) & MASK[x % 8]) != 0;
+        return (words[y * wordline + (x >> 6)] & (Long.MIN_VALUE >>> x)) != 0;
     }
 
     public void set (int x, int y, boolean on) {
-        int loc = y * scanline + x / 8;
+        int loc = y * wordline + (x >> 6);
         if (on) {
-            data[loc] |= MASK[x % 8];
+            words[loc] |= Long.MIN_VALUE >>> x;
         } 
         else {
-            data[loc] &= ~MASK[x % 8];
+            words[loc] &= ~(Long.MIN_VALUE >>> x);
         }
     }
 
-    public Bitmap and (Bitmap b) {
+    void checkSize (Bitmap b) {
         if (width != b.width || height != b.height)
             throw new IllegalArgumentException
                 ("bitmaps have different sizes");
-        Bitmap target = new Bitmap (width, height);
-        for (int i = 0; i < data.length; ++i) {
-            target.data[i] = (byte)((data[i]&0xff)&(b.data[i]&0xff)&0xff);
-        }
-        return target;
+    }
+
+    public Bitmap and (Bitmap b) {
+        return new Bitmap (this).andWith (b);
     }
 
     public Bitmap or (Bitmap b) {
-        if (width != b.width || height != b.height)
-            throw new IllegalArgumentException
-                ("bitmaps have different sizes");
-        Bitmap target = new Bitmap (width, height);
-        for (int i = 0; i < data.length; ++i) {
-            target.data[i] = (byte)(((data[i]&0xff)|(b.data[i]&0xff))&0xff);
+        return new Bitmap (this).orWith (b);
+    }
+
+    public Bitmap xor (Bitmap b) {
+        return new Bitmap (this).xorWith (b);
+    }
+
+    public Bitmap andNot (Bitmap b) {
+        return new Bitmap (this).andNotWith (b);
+    }
+
+    public Bitmap not () {
+        return new Bitmap (this).invert ();
+    }
+
+    /*
+     * in-place versions of the above; each returns this bitmap
+     */
+    public Bitmap andWith (Bitmap b) {
+        checkSize (b);
+        for (int i = 0; i < words.length; ++i)
+            words[i] &= b.words[i];
+        return this;
+    }
+
+    public Bitmap orWith (Bitmap b) {
+        checkSize (b);
+        for (int i = 0; i < words.length; ++i)
+            words[i] |= b.words[i];
+        return this;
+    }
+
+    public Bitmap xorWith (Bitmap b) {
+        checkSize (b);
+        for (int i = 0; i < words.length; ++i)
+            words[i] ^= b.words[i];
+        return this;
+    }
+
+    public Bitmap andNotWith (Bitmap b) {
+        checkSize (b);
+        for (int i = 0; i < words.length; ++i)
+            words[i] &= ~b.words[i];
+        return this;
+    }
+
+    public Bitmap invert () {
+        long tail = tailMask ();
+        for (int y = 0, row = 0; y < height; ++y) {
+            for (int i = 0; i < wordline; ++i)
+                words[row + i] = ~words[row + i];
+            row += wordline;
+            // keep the padding bits clear
+            words[row - 1] &= tail;
         }
-        return target;
+        return this;
     }
     
     /*
@@ -580,32 +789,55 @@ public class Bitmap implements Serializable, TIFFTags {
      * count number of 8-neighbor pixels
      */
     public int neighbor8 (int x, int y) {
-        int nb = 0;
-        if (p0 (x, y) == 1) ++nb;
-        if (p1 (x, y) == 1) ++nb;
-        if (p2 (x, y) == 1) ++nb;
-        if (p3 (x, y) == 1) ++nb;
-        if (p4 (x, y) == 1) ++nb;
-        if (p5 (x, y) == 1) ++nb;
-        if (p6 (x, y) == 1) ++nb;
-        if (p7 (x, y) == 1) ++nb;
-        return nb;
+        return Neighborhood.COUNT[neighborhood (x, y)];
     }
 
     /*
      * number of 8-neighbor pixels that transition from off to on
      */
     public int transition8 (int x, int y) {
-        int nb = 0;
-        if (p0 (x, y) - p7 (x, y) == 1) ++nb;
-        if (p1 (x, y) - p0 (x, y) == 1) ++nb;
-        if (p2 (x, y) - p1 (x, y) == 1) ++nb;
-        if (p3 (x, y) - p2 (x, y) == 1) ++nb;
-        if (p4 (x, y) - p3 (x, y) == 1) ++nb;
-        if (p5 (x, y) - p4 (x, y) == 1) ++nb;
-        if (p6 (x, y) - p5 (x, y) == 1) ++nb;
-        if (p7 (x, y) - p6 (x, y) == 1) ++nb;
-        return nb;
+        return Neighborhood.CROSSINGS[neighborhood (x, y)];
+    }
+
+    /*
+     * maps a 3x3 window (row-major, most significant bit is the top left
+     * pixel) to the 8-neighbor code of its center pixel where bit i is
+     * p(i) as defined above
+     */
+    static final int[] NEIGHBORHOOD = new int[512];
+    static {
+        for (int w = 0; w < NEIGHBORHOOD.length; ++w) {
+            NEIGHBORHOOD[w] = ((w >> 7) & 1) // p0
+                | ((w >> 6) & 1) << 1 // p1
+                | ((w >> 3) & 1) << 2 // p2
+                | (w & 1) << 3 // p3
+                | ((w >> 1) & 1) << 4 // p4
+                | ((w >> 2) & 1) << 5 // p5
+                | ((w >> 5) & 1) << 6 // p6
+                | ((w >> 8) & 1) << 7; // p7
+        }
+    }
+
+    /*
+     * pack the 8-neighbor of (x,y) into a code where bit i is p(i); see
+     * Neighborhood for the tables and for a cursor that is faster when
+     * visiting whole rows
+     */
+    public int neighborhood (int x, int y) {
+        int w = (y > 0 ? window3 (x, y - 1) << 6 : 0)
+            | window3 (x, y) << 3
+            | (y + 1 < height ? window3 (x, y + 1) : 0);
+        return NEIGHBORHOOD[w];
+    }
+
+    // pixels x-1, x, and x+1 of row y as a 3-bit value
+    int window3 (int x, int y) {
+        int b = x & 63;
+        if (b > 0 && b < 63) // all three pixels are within the same word
+            return (int) (words[y * wordline + (x >> 6)] >>> (62 - b)) & 7;
+        return (x > 0 && isOn (x - 1, y) ? 4 : 0)
+            | (isOn (x, y) ? 2 : 0)
+            | (x + 1 < width && isOn (x + 1, y) ? 1 : 0);
     }
 
     public void dump (OutputStream os) {
@@ -626,17 +858,10 @@ public class Bitmap implements Serializable, TIFFTags {
     }
 
     public WritableRaster createRaster () {
-        WritableRaster raster =
-            Raster.createWritableRaster (sampleModel, null);
-        for (int y = 0; y < height; ++y) {
-            int band = y * scanline;
-            for (int x = 0; x < width; ++x) {
-                // the default IndexColorModel is 0 for black and 1 white
-                raster.setSample
-                    (x, y, 0, (data[band + x / 8] & MASK[x % 8]) == 0 ? 1 : 0);
-            }
-        }
-        return raster;
+        // the default IndexColorModel is 0 for black and 1 white
+        byte[] data = not().toByteArray ();
+        return Raster.createWritableRaster
+            (sampleModel, new DataBufferByte (data, data.length), null);
     }
 
     public BufferedImage createBufferedImage () {
@@ -734,29 +959,60 @@ public class Bitmap implements Serializable, TIFFTags {
         Bitmap bm = createBitmap (raster, 1);
         if (photometric == PHOTOMETRIC_BLACKISZERO) {
             // flip
-            for (int i = 0; i < bm.data.length; ++i) {
-                bm.data[i] = (byte) (~bm.data[i] & 0xff);
-            }
+            bm.invert ();
         }
 
         return bm;
     }
 
+    /*
+     * pixels of the first band that are at least threshold; see Samples
+     */
     public static Bitmap createBitmap (Raster raster, int threshold) {
         Bitmap bm = new Bitmap (raster.getWidth (), raster.getHeight ());
+        if (threshold == 1 && bm.copyPacked (raster))
+            return bm;
+
+        Samples samples = new Samples (raster);
+        int[] row = new int[bm.width];
         for (int y = 0; y < bm.height; ++y) {
-            int band = bm.scanline * y;
-            for (int x = 0; x < bm.width; ++x) {
-                int pel = raster.getSample (x, y, 0);
-                if (pel >= threshold) {
-                    bm.data[band + x / 8] |= MASK[x % 8];
-                }
-            }
+            samples.row (y, row);
+            Samples.greater (row, bm.width, threshold - 1,
+                             bm.words, bm.wordline * y);
         }
-        
         return bm;
     }
 
+    /*
+     * copy the bits of a raster with 1-bit packed pixels (e.g., a
+     * bilevel TIFF) a byte at a time; false if the raster isn't laid
+     * out that way
+     */
+    boolean copyPacked (Raster raster) {
+        SampleModel sm = raster.getSampleModel ();
+        DataBuffer db = raster.getDataBuffer ();
+        if (!(sm instanceof MultiPixelPackedSampleModel)
+            || !(db instanceof DataBufferByte)
+            || ((MultiPixelPackedSampleModel) sm).getPixelBitStride () != 1
+            || raster.getMinX () != raster.getSampleModelTranslateX ()
+            || raster.getMinY () != raster.getSampleModelTranslateY ())
+            return false;
+
+        MultiPixelPackedSampleModel mpp = (MultiPixelPackedSampleModel) sm;
+        if (mpp.getDataBitOffset () != 0)
+            return false;
+        byte[] data = ((DataBufferByte) db).getData ();
+        int stride = mpp.getScanlineStride (), off = db.getOffset ();
+        for (int y = 0; y < height; ++y) {
+            int band = off + y * stride, row = y * wordline;
+            for (int i = 0; i < scanline; ++i)
+                words[row + (i >> 3)] |=
+                    (data[band + i] & 0xffl) << (56 - ((i & 7) << 3));
+            words[row + wordline - 1] &= tailMask ();
+        }
+        return true;
+    }
+
     public static Bitmap read (File file) throws IOException {
         return readtif (file);
     }
@@ -777,43 +1033,104 @@ public class Bitmap implements Serializable, TIFFTags {
         return write ("png", os);
     }
 
+    /*
+     * the pixels of s within its bounding box; the rows are masked
+     * with the spans of s
+     */
     public Bitmap crop (Shape s) {
         Rectangle r = s.getBounds ();
         if (r.width == 0 || r.height == 0) {
             return null;
         }
 
-        Bitmap dst = new Bitmap (r.width, r.height);
-        int x1 = Math.min (width, r.x + r.width);
-        int y1 = Math.min (height, r.y + r.height);
-        int x0 = r.x, y0 = r.y;
-
-        int i, j = 0;
-        for (int y = y0; y < y1; ++y, ++j) {
-            i = 0;
-            for (int x = x0; x < x1; ++x, ++i) {
-                if (s.contains (x, y))
-                    dst.set (i, j, get (x, y));
+        Bitmap dst = crop (r.x, r.y, r.width, r.height);
+        Spans spans = new Spans (s, r);
+        long[] mask = new long[dst.wordline];
+        for (int j = 0; j < dst.height; ++j) {
+            int i0 = spans.first (r.y + j), i1 = spans.first (r.y + j + 1);
+            int row = j * dst.wordline;
+            if (i0 == i1) {
+                Arrays.fill (dst.words, row, row + dst.wordline, 0l);
+                continue;
             }
+
+            Arrays.fill (mask, 0l);
+            for (int i = i0; i < i1; ++i)
+                setBits (mask, 0, spans.x0 (i) - r.x, spans.x1 (i) - r.x);
+            for (int k = 0; k < dst.wordline; ++k)
+                dst.words[row + k] &= mask[k];
         }
         return dst;
     }
 
+    /*
+     * rows are copied a word at a time; pixels outside of this bitmap
+     * are off
+     */
     public Bitmap crop (int x, int y, int w, int h) {
         Bitmap dst = new Bitmap (w, h);
-        int x1 = Math.min (width, x + w);
-        int y1 = Math.min (height, y + h);
-        // this is pretty slow... we should be using a lut
-        //   (look-up-table) here
-        int i, j = 0;
-        for (int y0 = y; y0 < y1; ++y0, ++j) {
-            i = 0;
-            for (int x0 = x; x0 < x1; ++x0, ++i)
-                dst.set (i, j, get (x0, y0));
+        long tail = dst.tailMask ();
+        for (int j = Math.max (0, -y), j1 = Math.min (h, height - y);
+             j < j1; ++j) {
+            int row = j * dst.wordline;
+            for (int k = 0; k < dst.wordline; ++k)
+                dst.words[row + k] = bits (x + (k << 6), y + j);
+            dst.words[row + dst.wordline - 1] &= tail;
         }
         return dst;
     }
 
+    /*
+     * the 64 pixels of row y starting at column x (most significant
+     * bit first); x can be anywhere and pixels outside the row are off
+     */
+    long bits (int x, int y) {
+        int i = x >> 6, b = x & 63, row = y * wordline;
+        long hi = i >= 0 && i < wordline ? words[row + i] : 0l;
+        if (b == 0)
+            return hi;
+        long lo = i + 1 >= 0 && i + 1 < wordline ? words[row + i + 1] : 0l;
+        return (hi << b) | (lo >>> (64 - b));
+    }
+
+    /*
+     * number of pixels on in [x0, x1) of row y
+     */
+    int count (int y, int x0, int x1) {
+        if (x0 >= x1)
+            return 0;
+        int row = y * wordline, i = x0 >> 6, j = (x1 - 1) >> 6;
+        long first = -1l >>> (x0 & 63);
+        long last = -1l << (63 - ((x1 - 1) & 63));
+        if (i == j)
+            return Long.bitCount (words[row + i] & first & last);
+        int count = Long.bitCount (words[row + i] & first)
+            + Long.bitCount (words[row + j] & last);
+        for (int k = i + 1; k < j; ++k)
+            count += Long.bitCount (words[row + k]);
+        return count;
+    }
+
+    /*
+     * turn on bits [from, to) of the row starting at words[row]
+     */
+    static void setBits (long[] words, int row, int from, int to) {
+        if (from >= to)
+            return;
+        int i = from >> 6, j = (to - 1) >> 6;
+        long first = -1l >>> (from & 63);
+        long last = -1l << (63 - ((to - 1) & 63));
+        if (i == j) {
+            words[row + i] |= first & last;
+        }
+        else {
+            words[row + i] |= first;
+            for (int k = i + 1; k < j; ++k)
+                words[row + k] = -1l;
+            words[row + j] |= last;
+        }
+    }
+
     /* Thinning algorithm based on Nagendraprasad, Wang, and Gupta.  The 
        following description is based on 
        Gonzalez and Woods, Digital Image Processing, Addison Wesley, 1992.
@@ -859,101 +1176,40 @@ public class Bitmap implements Serializable, TIFFTags {
      * thinning algorithm, Pattern Recognition Letters, 16, 539-541, 1995.
      */
     public Bitmap thin () {
-        Bitmap thin = new Bitmap (this);
-        byte[] copy = new byte[this.data.length];
-        System.arraycopy (thin.data, 0, copy, 0, copy.length);
-
-        int parity = 1;
-        boolean changed;
-        
-        do {
-            changed = false;
-            parity = 1 - parity;
-
-            for (int y = 0; y < height; ++y)
-                for (int x = 0; x < width; ++x) {
-                    if (thin.isOn(x, y)) {
-                        int nb = thin.neighbor8(x, y);
-                        int ap = thin.transition8(x, y);
-                        int cp = ((thin.p0(x, y) == 0 
-                                   && thin.p1(x, y) == 0
-                                   && thin.p2(x, y) == 0
-                                   && thin.p5(x, y) == 0
-                                   && thin.p4(x, y) == 1
-                                   && thin.p6(x, y) == 1)
-                                  || (thin.p2(x, y) == 0
-                                      && thin.p3(x, y) == 0 
-                                      && thin.p4(x, y) == 0
-                                      && thin.p7(x, y) == 0
-                                      && thin.p6(x, y) == 1
-                                      && thin.p0(x, y) == 1)) ? 1 : 0; 
-                        int dp = ((thin.p1(x, y) == 0 
-                                   && thin.p4(x, y) == 0
-                                   && thin.p5(x, y) == 0
-                                   && thin.p6(x, y) == 0
-                                   && thin.p0(x, y) == 1
-                                   && thin.p2(x, y) == 1)
-                                  || (thin.p0(x, y) == 0 
-                                      && thin.p3(x, y) == 0
-                                      && thin.p6(x, y) == 0
-                                      && thin.p7(x, y) == 0
-                                      && thin.p2(x, y) == 1 
-                                      && thin.p4(x, y) == 1)) ? 1 : 0;
-                        if (nb > 1 && nb < 7 
-                            && (ap == 1 || ((1-parity)*cp + parity*dp) == 1)) {
-                            int ep = (thin.p2(x, y) + thin.p4(x, y))
-                                *thin.p0(x, y) * thin.p6(x, y);
-                            int fp = (thin.p6(x, y) + thin.p0(x, y))
-                                *thin.p4(x, y) * thin.p2(x, y);
-                            if ((parity == 0 && ep == 0) 
-                                || (parity == 1 && fp == 0)) {
-                                // delete this pixel
-                                copy[scanline * y + x / 8] &= ~MASK[x % 8];
-                                changed = true;
-                            }
-                        }
-                    } // if pixel is on
-                } // endfor each pixel
-
-            // update the image
-            if (changed) {
-                System.arraycopy (copy, 0, thin.data, 0, copy.length);
-            }
-        }
-        while (changed);
-        copy = null;
+        return new Thinning (this).thin ();
+    }
 
-        return thin;
+    /*
+     * same as thin() but the work is split into horizontal bands that
+     * are processed on the common ForkJoinPool
+     */
+    public Bitmap thin (boolean parallel) {
+        return parallel ? thin (ForkJoinPool.commonPool ()) : thin ();
     }
 
-    void union (short[] eqvtab, short cls1, short cls2) {
-        short i = cls1, j = cls2, k;
-        //logger.info("union "+cls1+" "+cls2);
+    public Bitmap thin (ForkJoinPool pool) {
+        return Thinning.thin (this, pool);
+    }
 
-        while (eqvtab[i] > 0) i = eqvtab[i];
-        while (eqvtab[j] > 0) j = eqvtab[j];
+    /*
+     * binary morphology with a structuring element (see Morphology);
+     * each returns a new bitmap. Pixels outside this bitmap are off
+     * for dilation and on for erosion.
+     */
+    public Bitmap dilate (StructuringElement se) {
+        return Morphology.dilate (this, se);
+    }
 
-        while (eqvtab[cls1] > 0) {
-            k = cls1;
-            cls1 = eqvtab[cls1];
-            eqvtab[k] = i;
-        }
+    public Bitmap erode (StructuringElement se) {
+        return Morphology.erode (this, se);
+    }
 
-        while (eqvtab[cls2] > 0) {
-            k = cls2;
-            cls2 = eqvtab[cls2];
-            eqvtab[k] = j;
-        }
+    public Bitmap open (StructuringElement se) {
+        return Morphology.dilate (Morphology.erode (this, se), se);
+    }
 
-        if (i != j) {
-            if (eqvtab[j] < eqvtab[i]) {
-                eqvtab[j] += eqvtab[i] - 1;
-                eqvtab[i] = j;
-            } else {
-                eqvtab[i] += eqvtab[j] - 1;
-                eqvtab[j] = i;
-            }
-        }
+    public Bitmap close (StructuringElement se) {
+        return Morphology.erode (Morphology.dilate (this, se), se);
     }
 
     /*
@@ -974,273 +1230,88 @@ public class Bitmap implements Serializable, TIFFTags {
         return connectedComponents (Bbox.Rectangular);
     }
 
+    /*
+     * 8-connected components in raster order of their first pixel; see
+     * ConnectedComponents
+     */
     public List<Shape> connectedComponents (Bbox shape) {
-        short label = 0; // current label
-        short[][] labels = new short[height][width + 1];
-
-        // equivalence class
-        short[] eqvtab = new short[500]; // some initial default
-        short[] L = new short[4];
-
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                /* check to see if we have a black pixel */
-                if (!get (x, y))
-                    /* do nothing */ ;
-                /* boundary conditions */
-                else if (y == 0 && x == 0) {
-                    labels[y][x] = ++label;
-                } else if (y == 0) {
-                    short label1 = labels[y][x - 1];
-                    if (label1 == 0) {
-                        label1 = ++label;
-                    }
-                    labels[y][x] = label1;
-                } else if (x == 0) {
-                    int label1 = labels[y - 1][x];
-                    int label2 = labels[y - 1][x + 1];
-                    if (label1 != 0 && label2 != 0)
-                        label1 = Math.min (label1, label2);
-                    else if (label1 == 0 && label2 == 0) {
-                        label1 = ++label;
-                    } else
-                        label1 = Math.max (label1, label2);
-                    labels[y][x] = (short) label1;
-                }
-                /* assign new label */
-                else if (labels[y][x - 1] == 0
-                         && labels[y - 1][x] == 0
-                         && labels[y - 1][x - 1] == 0
-                         && labels[y - 1][x + 1] == 0) {
-                    labels[y][x] = ++label;
-                } else {
-                    L[0] = labels[y - 1][x - 1];
-                    L[1] = labels[y - 1][x];
-                    L[2] = labels[y - 1][x + 1];
-                    L[3] = labels[y][x - 1];
-
-                    Arrays.sort (L);
-
-                    /* skip all non-labeled pixels */
-                    int n;
-                    for (n = 0; n < 4 && L[n] == 0; ++n)
-                        ;
-                    /* n should not be 4 */
-                    if (n == 4) {
-                        throw new IllegalStateException ("n == 4");
-                    }
-
-                    labels[y][x] = L[n];
-                    /* now enumerate from n to 4 - 1 */
-                    for (int i = n; i < 4; ++i)
-                        for (int j = i + 1; j < 4; ++j)
-                            /* update equivalence table */
-                            union (eqvtab, L[i], L[j]);
-                }
-
-                if (label == Short.MAX_VALUE) {
-                    logger.log (Level.SEVERE, "Max number of labels reached: "
-                                + label + "; truncating search!");
-                    return null;
-                }
-                // ensure there's enough space in the eqvtab
-                else if (label >= eqvtab.length) {
-                    short[] newtab = new short[label + 100];
-                    System.arraycopy (eqvtab, 0, newtab, 0, eqvtab.length);
-                    eqvtab = newtab;
-                }
-            }
-        }
-
-        if (DEBUG) {
-            System.err.print ("eqvtab:");
-            for (int i = 1; i <= label; ++i) {
-                System.err.print (" " + i + ":" + eqvtab[i]);
-            }
-            System.err.println ();
-            System.err.println ("label: " + label);
-
-            System.err.println ("eqv class labels...");
-            for (int y = 0; y < height; ++y) {
-                for (int x = 0; x < width; ++x) {
-                    System.err.print
-                        (get (x, y) ? String.valueOf (labels[y][x]) : '.');
-                }
-                System.err.println ();
-            }
-        }
-
-
-        List<Shape> comps;
-        switch (shape) {
-        case Polygon:
-            comps = connectedComponentPolygonShapes (eqvtab, labels);
-            break;
-
-        case Rectangular:
-        default:
-            comps = connectedComponentRectangularShapes (eqvtab, labels);
-        }
-
-        if (DEBUG) {
-            System.err.println ("merged labels...");
-            for (int y = 0; y < height; ++y) {
-                for (int x = 0; x < width; ++x) {
-                    System.err.print
-                        (get (x, y) ? String.valueOf (labels[y][x]) : '.');
-                }
-                System.err.println ();
-            }
-        }
-        eqvtab = null;
-        labels = null;
-
-        return comps;
+        return new ConnectedComponents (this).getShapes (shape);
     }
 
+    /*
+     * same as connectedComponents(shape) but labeled in horizontal bands
+     * on the common ForkJoinPool
+     */
+    public List<Shape> connectedComponents (Bbox shape, boolean parallel) {
+        return parallel ? connectedComponents (shape, ForkJoinPool.commonPool ())
+            : connectedComponents (shape);
+    }
 
-    List<Shape> connectedComponentPolygonShapes
-        (short[] eqvtab, short[][] labels) {
-
-        Map<Short, List<Point>> coords = new HashMap<Short, List<Point>> ();
-        for (int y = 0; y < height; ++y)
-            for (int x = 0; x < width; ++x) {
-                short label = labels[y][x];
-                if (label != 0) {
-                    short l = label;
-                    /* find equivalence class */
-                    while (eqvtab[l] > 0)
-                        l = eqvtab[l];
-
-                    labels[y][x] = l;
-
-                    List<Point> pts = coords.get (l);
-                    if (pts == null) {
-                        coords.put (l, pts = new ArrayList<Point> ());
-                    }
-                    pts.add (new Point (x, y));
-                }
-            }
-
-        List<Shape> comps = new ArrayList<Shape> ();
-        for (List<Point> pts : coords.values ()) {
-            Polygon hull = GeomUtil.convexHull (pts.toArray (new Point[0]));
-            Rectangle r = hull.getBounds();
-            if (r.width > 0 && r.height > 0) {
-                comps.add (hull);
-            }
-        }
+    public List<Shape> connectedComponents (Bbox shape, ForkJoinPool pool) {
+        return new ConnectedComponents (this, pool).getShapes (shape, pool);
+    }
 
-        return comps;
+    /*
+     * per-component features of the connected components; see
+     * ComponentTable
+     */
+    public ComponentTable componentTable () {
+        return new ConnectedComponents (this).getTable ();
     }
 
-    List<Shape> connectedComponentRectangularShapes
-        (short[] eqvtab, short[][] labels) {
+    public ComponentTable componentTable (Raster raster) {
+        return new ConnectedComponents (this).getTable (raster);
+    }
 
-        Map<Short, Rectangle> ltab = new HashMap<Short, Rectangle> ();
-        List<Shape> comps = new ArrayList<Shape> ();
+    public LabelImage labelImage () {
+        return new ConnectedComponents (this).getLabelImage ();
+    }
 
-        for (int y = 0; y < height; ++y)
-            for (int x = 0; x < width; ++x) {
-                short label = labels[y][x];
-                if (label != 0) {
-                    short l = label;
-                    /* find equivalence class */
-                    while (eqvtab[l] > 0)
-                        l = eqvtab[l];
-
-                    labels[y][x] = l;
-                    /* create bounding box for each class and make
-                       sure that it does not go outside of the image
-                       boundary */
-                    Rectangle r = ltab.get (l);
-                    if (r == null) {
-                        ltab.put (l, r = new Rectangle (x, y, 1, 1));
-                        comps.add (r);
-                    }
-                    int x0 = Math.min (r.x, x);
-                    int y0 = Math.min (r.y, y);
-                    int x1 = Math.min (width, Math.max (r.x + r.width, x + 1));
-                    int y1 = Math.min (height, Math.max (r.y + r.height, y + 1));
-                    r.setBounds (x0, y0, x1 - x0, y1 - y0);
-                }
-            }
+    /*
+     * exact Euclidean distance of each pixel to the nearest pixel that
+     * is off; see DistanceTransform
+     */
+    public DistanceTransform distanceTransform () {
+        return new DistanceTransform (this);
+    }
 
-        return comps;
-    }
-
-    static EnumSet<ChainCode> getNeighbors (Bitmap b, int x, int y) {
-        EnumSet<ChainCode> Nb = EnumSet.noneOf (ChainCode.class);
-
-        // boundary cases
-        if (x == 0 && y == 0) { // Nb in {0, 6, 7}
-            if (b.get (x + 1, y)) Nb.add (ChainCode.E);
-            if (b.get (x, y + 1)) Nb.add (ChainCode.S);
-            if (b.get (x + 1, y + 1)) Nb.add (ChainCode.SE);
-        }
-        else if (x == 0) { // Nb in {2,1,0,7,6}
-            if (b.get (x + 1, y)) Nb.add (ChainCode.E);
-            if (b.get (x + 1, y - 1)) Nb.add (ChainCode.NE);
-            if (b.get (x, y - 1)) Nb.add (ChainCode.N);
-            if (b.get (x, y + 1)) Nb.add (ChainCode.S);
-            if (b.get (x + 1, y + 1)) Nb.add (ChainCode.SE);
-        }
-        else if (y == 0) { // Nb in {4,5,6,7,0}
-            if (b.get (x - 1, y)) Nb.add (ChainCode.W);
-            if (b.get (x - 1, y - 1)) Nb.add (ChainCode.SW);
-            if (b.get (x, y + 1)) Nb.add (ChainCode.S);
-            if (b.get (x + 1, y + 1)) Nb.add (ChainCode.SE);
-            if (b.get (x + 1, y)) Nb.add (ChainCode.E);
-        }
-        else if (x == b.width - 1 && y == b.height - 1) {
-            // Nb in {2,3,4}
-            if (b.get (x, y - 1)) Nb.add (ChainCode.N);
-            if (b.get (x - 1, y - 1)) Nb.add (ChainCode.NW);
-            if (b.get (x - 1, y)) Nb.add (ChainCode.W);
-        }
-        else if (x == b.width - 1) {
-            // Nb in {2,3,4,5,6}
-            if (b.get (x, y - 1)) Nb.add (ChainCode.N);
-            if (b.get (x - 1, y - 1)) Nb.add (ChainCode.NW);
-            if (b.get (x - 1, y)) Nb.add (ChainCode.W);
-            if (b.get (x - 1, y + 1)) Nb.add (ChainCode.SW);
-            if (b.get (x, y + 1)) Nb.add (ChainCode.S);
-        }
-        else if (y == b.height - 1) {
-            // Nb in {0,1,2,3,4}
-            if (b.get (x + 1, y)) Nb.add (ChainCode.E);
-            if (b.get (x + 1, y - 1)) Nb.add (ChainCode.NE);
-            if (b.get (x, y - 1)) Nb.add (ChainCode.N);
-            if (b.get (x - 1, y - 1)) Nb.add (ChainCode.NW);
-            if (b.get (x - 1, y)) Nb.add (ChainCode.W);
-        }
-        else {
-            if (b.get (x + 1, y)) Nb.add (ChainCode.E);
-            if (b.get (x + 1, y - 1)) Nb.add (ChainCode.NE);
-            if (b.get (x, y - 1)) Nb.add (ChainCode.N);
-            if (b.get (x - 1, y - 1)) Nb.add (ChainCode.NW);
-            if (b.get (x - 1, y)) Nb.add (ChainCode.W);
-            if (b.get (x - 1, y + 1)) Nb.add (ChainCode.SW);
-            if (b.get (x, y + 1)) Nb.add (ChainCode.S);
-            if (b.get (x + 1, y + 1)) Nb.add (ChainCode.SE);
-        }
-        return Nb;
+    public DistanceTransform distanceTransform
+        (DistanceTransform.Metric metric, boolean parallel) {
+        return new DistanceTransform
+            (this, metric, parallel ? ForkJoinPool.commonPool () : null);
     }
 
     public List<ChainCodeSequence> chainCodes () {
         return chainCodes (5);
     }
 
+    /*
+     * the outer borders (see Contours) with at least minsize moves, in
+     * raster order of their first pixel. A border is a closed chain
+     * code unless it encloses no pixels (e.g., on a skeleton), in which
+     * case it's cut into open strokes (see Contours.getStrokes()) and
+     * each stroke with at least minsize moves is a sequence.
+     */
     public List<ChainCodeSequence> chainCodes (int minsize) {
-        Bitmap clone = new Bitmap (this);
+        Contours contours = new Contours (this);
 
         List<ChainCodeSequence> seqs = new ArrayList<ChainCodeSequence> ();
-        for (ChainCodeSequence seq; (seq = chainCode (clone)) != null; ) {
+        List<ChainCodeSequence> strokes = new ArrayList<ChainCodeSequence> ();
+        for (int i = 0; i < contours.size (); ++i) {
+            if (contours.isHole (i) || contours.length (i) < minsize)
+                continue;
+            strokes.addAll (contours.getStrokes (i));
+        }
+
+        for (ChainCodeSequence seq : strokes) {
+            if (seq.length () < minsize)
+                continue;
+
             if (DEBUG) {
                 System.out.println ("-- " + seq);
-                for (int y = 0; y < clone.height (); ++y) {
-                    for (int x = 0; x < clone.width (); ++x) {
-                        String s = clone.get (x, y) ? "*" : ".";
+                for (int y = 0; y < height; ++y) {
+                    for (int x = 0; x < width; ++x) {
+                        String s = get (x, y) ? "*" : ".";
                         ChainCode c = seq.getCode (x, y);
                         if (c != null) {
                             s = "" + c.ch ();
@@ -1251,9 +1322,7 @@ public class Bitmap implements Serializable, TIFFTags {
                 }
                 seq.dominantPoints (DEFAULT_AEV_THRESHOLD);
             }
-            if (seq.length () >= minsize) {
-                seqs.add (seq);
-            }
+            seqs.add (seq);
         }
 
         return seqs;
@@ -1297,18 +1366,13 @@ public class Bitmap implements Serializable, TIFFTags {
     public static ChainCodeSequence chainCode (Bitmap bitmap) {
         int x = -1, y = -1; // locate the first point
 
-        boolean done = false;
-        for (int j = 0; j < bitmap.height; ++j) {
-            int band = j * bitmap.scanline;
-            for (int i = 0; i < bitmap.width; ++i) {
-                if ((bitmap.data[band + i / 8] & MASK[i % 8]) != 0) {
-                    x = i;
-                    y = j;
-                    done = true;
-                    break;
-                }
+        for (int i = 0; i < bitmap.words.length; ++i) {
+            if (bitmap.words[i] != 0) {
+                y = i / bitmap.wordline;
+                x = ((i % bitmap.wordline) << 6)
+                    + Long.numberOfLeadingZeros (bitmap.words[i]);
+                break;
             }
-            if (done) break;
         }
 
         if (x < 0 || y < 0) {
@@ -1318,31 +1382,33 @@ public class Bitmap implements Serializable, TIFFTags {
         ChainCodeSequence seq = new ChainCodeSequence (x, y);
 
         do {
-            EnumSet<ChainCode> Nb = getNeighbors (bitmap, x, y);
+            int nb = bitmap.neighborhood (x, y);
 
             Point2D pt = null;
-            if (Nb.isEmpty ()) {
+            if (nb == 0) {
             }
-            else if (Nb.size () == 1) { //
-                pt = seq.add (Nb.iterator ().next ());
+            else if (Neighborhood.COUNT[nb] == 1) { //
+                pt = seq.add (Neighborhood.DIRECTIONS[nb][0]);
             }
             else {
                 // multiple choice; pick best one based on the following
                 //  rule: select the one for which
                 ChainCode best = null;
-                EnumSet<ChainCode> bestNq = null;
+                int bestNq = -1;
 
-                for (ChainCode c : Nb) {
+                for (ChainCode c : Neighborhood.DIRECTIONS[nb]) {
                     int xp = x + c.dx (), yp = y + c.dy ();
                     if (!seq.contains (xp, yp)) {
-                        EnumSet<ChainCode> Nq = getNeighbors (bitmap, xp, yp);
-                        if (bestNq == null
-                            || (!Nq.isEmpty () && Nq.size () < bestNq.size ())
+                        int nq = bitmap.neighborhood (xp, yp);
+                        if (bestNq < 0
+                            || (nq != 0 && Neighborhood.COUNT[nq]
+                                < Neighborhood.COUNT[bestNq])
                             // choose the least change in direction
-                            || (Nq.size () == bestNq.size ()
+                            || (Neighborhood.COUNT[nq]
+                                == Neighborhood.COUNT[bestNq]
                                 && c.angle () < best.angle ())) {
                             best = c;
-                            bestNq = Nq;
+                            bestNq = nq;
                         }
                     }
                 }
@@ -1381,11 +1447,10 @@ public class Bitmap implements Serializable, TIFFTags {
         x = seq.getStartX ();
         y = seq.getStartY ();
         for (ChainCode c : seq.getSequence ()) {
-            EnumSet<ChainCode> Nb = getNeighbors (bitmap, x, y);
-            for (ChainCode n : Nb) {
+            int nb = bitmap.neighborhood (x, y);
+            for (ChainCode n : Neighborhood.DIRECTIONS[nb]) {
                 int xp = x + n.dx (), yp = y + n.dy ();
-                EnumSet<ChainCode> Nq = getNeighbors (bitmap, xp, yp);
-                if (Nq.isEmpty ()) {
+                if (bitmap.neighborhood (xp, yp) == 0) {
                     bitmap.set (xp, yp, false);
                 }
             }
@@ -1399,18 +1464,13 @@ public class Bitmap implements Serializable, TIFFTags {
     public static ChainCodeSequence chainCode2 (Bitmap bitmap) {
         int x = -1, y = -1; // locate the first point
 
-        boolean done = false;
-        for (int j = 0; j < bitmap.height; ++j) {
-            int band = j * bitmap.scanline;
-            for (int i = 0; i < bitmap.width; ++i) {
-                if ((bitmap.data[band + i / 8] & MASK[i % 8]) != 0) {
-                    x = i;
-                    y = j;
-                    done = true;
-                    break;
-                }
+        for (int i = 0; i < bitmap.words.length; ++i) {
+            if (bitmap.words[i] != 0) {
+                y = i / bitmap.wordline;
+                x = ((i % bitmap.wordline) << 6)
+                    + Long.numberOfLeadingZeros (bitmap.words[i]);
+                break;
             }
-            if (done) break;
         }
         Bitmap visited = new Bitmap (bitmap.width, bitmap.height);
 
@@ -1427,12 +1487,13 @@ public class Bitmap implements Serializable, TIFFTags {
         }
 
         bitmap.set (x, y, false);
-        EnumSet<ChainCode> Nb = getNeighbors (bitmap, x, y);
+        int nb = bitmap.neighborhood (x, y);
 
-        logger.info ("+ x:" + x + " y:" + y + " N:" + Nb.size ());
-        if (Nb.isEmpty ()) {
-        } else if (Nb.size () == 1) { //
-            Point2D pt = seq.add (Nb.iterator ().next ());
+        logger.info ("+ x:" + x + " y:" + y
+                     + " N:" + Neighborhood.COUNT[nb]);
+        if (nb == 0) {
+        } else if (Neighborhood.COUNT[nb] == 1) { //
+            Point2D pt = seq.add (Neighborhood.DIRECTIONS[nb][0]);
             if (pt != null) {
                 chainCode2 (seq, visited, bitmap,
                             (int) pt.getX (), (int) pt.getY ());
@@ -1441,19 +1502,21 @@ public class Bitmap implements Serializable, TIFFTags {
             // multiple choice; pick best one based on the following
             //  rule: select the one for which
             ChainCode best = null;
-            EnumSet<ChainCode> bestNq = null;
+            int bestNq = -1;
 
-            for (ChainCode c : Nb) {
+            for (ChainCode c : Neighborhood.DIRECTIONS[nb]) {
                 int xp = x + c.dx (), yp = y + c.dy ();
                 if (!seq.contains (xp, yp)) {
-                    EnumSet<ChainCode> Nq = getNeighbors (bitmap, xp, yp);
-                    if (bestNq == null
-                        || (!Nq.isEmpty () && Nq.size () < bestNq.size ())
+                    int nq = bitmap.neighborhood (xp, yp);
+                    if (bestNq < 0
+                        || (nq != 0 && Neighborhood.COUNT[nq]
+                            < Neighborhood.COUNT[bestNq])
                         // choose the least change in direction
-                        || (Nq.size () == bestNq.size ()
+                        || (Neighborhood.COUNT[nq]
+                            == Neighborhood.COUNT[bestNq]
                             && c.angle () < best.angle ())) {
                         best = c;
-                        bestNq = Nq;
+                        bestNq = nq;
                     }
                 }
             }
@@ -1467,7 +1530,7 @@ public class Bitmap implements Serializable, TIFFTags {
                 }
             }
 
-            for (ChainCode c : Nb) {
+            for (ChainCode c : Neighborhood.DIRECTIONS[nb]) {
                 if (c != best) {
                     Point2D pt = seq.add (c);
                     if (pt != null) {
@@ -1484,103 +1547,25 @@ public class Bitmap implements Serializable, TIFFTags {
     /**
      * detect line segments in the bitmap using the Hough transform
      * thetaDelta - angle partition in degree
-     * rhoDelta - radius partition in degree
+     * rhoDelta - radius partition in pixels
+     * see HoughTransform.segments()
      */
     public List<Line2D> segments (int thetaDelta, int rhoDelta) {
-        if (thetaDelta <= 0) {
-            throw new IllegalArgumentException
-                ("Invalid delta value: " + thetaDelta);
-        }
-
-        // rho = x cos(theta) + y sin(theta)
-        int nsteps = 180 / thetaDelta;
-        int rmax = (int) (0.5 + Math.sqrt (width * width + height * height));
-        int nrho = 2 * rmax / rhoDelta;
-        List[][] H = new List[nsteps + 1][nrho];
-
-        List<List> lines = new ArrayList<List> ();
-        for (int y = 0; y < height; ++y) {
-            int band = y * scanline;
-            for (int x = 0; x < width; ++x) {
-                if ((data[band + x / 8] & MASK[x % 8]) != 0) {
-                    //System.err.println("x="+x+" y="+y);
-                    for (int n = 0; n < nsteps; ++n) {
-                        int t = n * thetaDelta;
-                        double theta = Math.toRadians (t);
-                        int rho = (int) (0.5 + x * Math.cos (theta)
-                                         + y * Math.sin (theta));
-                        int r = (rho + rmax) / rhoDelta;
-                        List l = H[n][r];
-                        if (l == null) {
-                            H[n][r] = l = new ArrayList ();
-                            lines.add (l);
-                        }
-                        l.add (new Point (x, y));
-                    }
-                }
-            }
-        }
-        H = null;
-
-        Collections.sort (lines, new Comparator<List> () {
-                              public int compare (List l1, List l2) {
-                                  return l2.size () - l1.size ();
-                              }
-                          });
-
-        List<Line2D> segments = new ArrayList<Line2D> ();
-        for (List l : lines) {
-            if (l.size () < 2) {
-                break;
-            }
-
-            Point start = null, p = null;
-
-            //System.err.println("** path "+l.size());
-            next: for (int i = 1; i < l.size (); ++i) {
-                Point pt = (Point) l.get (i);
-
-                //System.out.println("  "+pt);
-                if (start == null) {
-                    start = pt;
-                } else if (GeomUtil.isNeighbor (pt, p)) {
+        return segments (thetaDelta, rhoDelta, null);
+    }
 
-                } else {
-                    if (start.distance (p) > 2.) {
-                        Line2D ln = new Line2D.Float (start, p);
-                        for (Line2D s : segments) {
-                            if (ln.intersectsLine (s)) {
-                                ln = null;
-                                break;
-                            }
-                        }
-                        if (ln != null) {
-                            segments.add (ln);
-                        }
-                    }
-                    start = pt;
-                }
-                p = pt;
-            }
-
-            if (start.distance (p) > 2.) {
-                Line2D ln = new Line2D.Float (start, p);
-                for (Line2D s : segments) {
-                    if (ln.intersectsLine (s)) {
-                        ln = null;
-                        break;
-                    }
-                }
-                if (ln != null) {
-                    segments.add (ln);
-                }
-            }
-        }
+    public List<Line2D> segments (int thetaDelta, int rhoDelta,
+                                  ForkJoinPool pool) {
+        List<Line2D> segments = new HoughTransform
+            (this, thetaDelta, rhoDelta, pool).segments (2);
 
         logger.info (segments.size () + " segments!");
-        for (Line2D l : segments) {
-            System.err.println (l.getP1 () + " - " + l.getP2 ()
-                                + " length=" + l.getP1 ().distance (l.getP2 ()));
+        if (DEBUG) {
+            for (Line2D l : segments) {
+                System.err.println (l.getP1 () + " - " + l.getP2 ()
+                                    + " length="
+                                    + l.getP1 ().distance (l.getP2 ()));
+            }
         }
 
         return segments;
@@ -1588,7 +1573,9 @@ public class Bitmap implements Serializable, TIFFTags {
 
     // p4 neighbor
     public boolean isBoundary (int x, int y) {
-        return !(get (x-1, y) && get (x, y-1) && get (x+1, y) && get (x, y+1));
+        if (x < 0 || x >= width || y < 0 || y >= height)
+            return true; // one of its 4-neighbors is outside
+        return Neighborhood.isBoundary (neighborhood (x, y));
     }
 
     /*
@@ -1596,14 +1583,51 @@ public class Bitmap implements Serializable, TIFFTags {
      */
     public Bitmap trace () {
         Bitmap tr = new Bitmap (width, height);
+        Neighborhood nb = new Neighborhood (this);
         for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                if (isOn (x, y) && isBoundary (x, y)) {
-                    tr.set(x, y, true);
+            nb.row (y);
+            int row = y * wordline;
+            for (int i = 0; i < wordline; ++i)
+                tr.words[row + i] = words[row + i] & ~nb.cross (i);
+        }
+        return tr;
+    }
+
+    /*
+     * the pixels that are on and end a line (see Neighborhood.isEndpoint);
+     * usually applied to the result of thin()
+     */
+    public Bitmap endpoints () {
+        return select (false);
+    }
+
+    /*
+     * the pixels that are on where three or more lines meet (see
+     * Neighborhood.isJunction); usually applied to the result of thin()
+     */
+    public Bitmap junctions () {
+        return select (true);
+    }
+
+    Bitmap select (boolean junction) {
+        Bitmap sel = new Bitmap (width, height);
+        Neighborhood nb = new Neighborhood (this);
+        for (int y = 0; y < height; ++y) {
+            nb.row (y);
+            int row = y * wordline;
+            for (int i = 0; i < wordline; ++i) {
+                long t = 0l;
+                for (long c = words[row + i]; c != 0; c &= c - 1) {
+                    int b = Long.numberOfTrailingZeros (c);
+                    int code = nb.code ((i << 6) + 63 - b);
+                    if (junction ? Neighborhood.isJunction (code)
+                        : Neighborhood.isEndpoint (code))
+                        t |= 1l << b;
                 }
+                sel.words[row + i] = t;
             }
         }
-        return tr;
+        return sel;
     }
 
     /*
@@ -1615,25 +1639,28 @@ public class Bitmap implements Serializable, TIFFTags {
     }
 
     public Bitmap and (Shape s) {
-        Rectangle r = s.getBounds();
-        if (r.width > 0 && r.height > 0) {
-            Bitmap b = new Bitmap (r.width, r.height);
-            for (int y = 0; y < b.height; ++y) {
-                for (int x = 0; x < b.width; ++x) {
-                    if (s.contains(r.x+x, r.y+y))
-                        b.set(x, y, get (r.x+x, r.y+y));
-                }
-            }
-            return b;
-        }
-        return null;
+        return crop (s);
     }
 
     public Shape[] split () {
         return split (1);
     }
     
+    /*
+     * split the bitmap in two by removing the pixels within slack of
+     * the segment between two concave points of its boundary; the cut
+     * that leaves two parts of the most similar size wins. Returns the
+     * convex hulls of the two parts or null. See Splitter.
+     */
     public Shape[] split (double slack) {
+        return split (slack, null);
+    }
+
+    public Shape[] split (double slack, boolean parallel) {
+        return split (slack, parallel ? ForkJoinPool.commonPool () : null);
+    }
+
+    public Shape[] split (double slack, ForkJoinPool pool) {
         Point2D[] pts = trace().dominantPoints().toArray(new Point2D[0]); 
 
         // identify all concave points (if any)
@@ -1655,35 +1682,7 @@ public class Bitmap implements Serializable, TIFFTags {
             
             // for each pair of concave points, we make an attempt to cut
             // the bitmap
-            long best = Integer.MAX_VALUE;
-            for (int i = 0; i < concave.size(); ++i) {
-                for (int j = i+1; j < concave.size(); ++j) {
-                    Line2D line = new Line2D.Double(concave.get(i),
-                                                    concave.get(j));
-                    Bitmap b = new Bitmap (this);
-                    for (int y = 0; y < height; ++y) {
-                        for (int x = 0; x < width; ++x) {
-                            Point2D p = new Point2D.Double(x, y);
-                            if (line.ptSegDist(p) < slack) {
-                                // remove the pixel to create a disconnected
-                                // component
-                                b.set(x, y, false);
-                            }
-                        }
-                    }
-
-                    List<Shape> ccs = b.polyConnectedComponents();
-                    if (ccs.size() == 2) {
-                        Bitmap b0 = b.crop(ccs.get(0));
-                        Bitmap b1 = b.crop(ccs.get(1));
-                        long delta = Math.abs(b0.area() - b1.area());
-                        if (split == null || delta < best) {
-                            split = ccs.toArray(new Shape[0]);
-                            best = delta;
-                        }
-                    }
-                }
-            }
+            split = new Splitter (this, slack, concave).split (pool);
         }
         
         return split;
@@ -182,7 +182,7 @@ public class ColonyAnalysis {
                 ("No bitmap available to apply thinning!");
         }
         long start = System.currentTimeMillis();
-        skeleton = bitmap.thin();
+        skeleton = bitmap.thin(true);
         BufferedImage img = skeleton.createBufferedImage();
         //debug ("skeleton.png", img);
         
@@ -200,7 +200,7 @@ public class ColonyAnalysis {
         }
         List<Shape> old = polygons;
         long start = System.currentTimeMillis();
-        polygons = bitmap.connectedComponents(Bitmap.Bbox.Polygon);
+        polygons = bitmap.connectedComponents(Bitmap.Bbox.Polygon, true);
         logger.info("## "+polygons.size()+" connected components in "
                     +String.format("%1$.3fs", 
                                    (System.currentTimeMillis()-start)*1e-3));
@@ -238,8 +238,8 @@ public class ColonyAnalysis {
         */
         long start = System.currentTimeMillis();
         Segmentation seg = new Segmentation ();
-        Shape[] roi = seg.regionsOfInterest
-            (bitmap.horizontalHistogram(), bitmap.verticalHistogram());
+        int[][] hist = bitmap.histograms();
+        Shape[] roi = seg.regionsOfInterest(hist[0], hist[1]);
         colonies = new ArrayList<Colony>();
         for (Shape r : roi) {
             Colony colony = new Colony ();
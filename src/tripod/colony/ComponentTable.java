@@ -0,0 +1,172 @@
+package tripod.colony;
+
+import java.awt.Shape;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+/**
+ * Per-component features of a ConnectedComponents labeling stored as
+ * columns of primitive arrays; column[k] is the value for component
+ * k. All columns are computed in a single pass over the runs, so no
+ * per-pixel Shape.contains() is needed to get the area, bounds or
+ * intensity statistics of a component. The convex hull of a component
+ * is only built when getShape() is called.
+ */
+public class ComponentTable {
+    final ConnectedComponents cc;
+    final Polygon[] shapes;
+
+    public final int size;
+    public final int[] label; // label of the component in the label image
+    public final int[] count; // number of pixels
+    public final int[] xmin, ymin, xmax, ymax; // inclusive bounds
+    public final double[] cx, cy; // centroid
+    public final double[] mxx, myy, mxy; // central second moments
+    public final int[] perimeter; // number of pixel edges on the border
+
+    // intensity sum and sum of squares over the component pixels; these
+    //  are null if the table is created without a raster
+    public final long[] sum, sumsq;
+
+    public ComponentTable (ConnectedComponents cc) {
+        this (cc, null);
+    }
+
+    public ComponentTable (ConnectedComponents cc, Raster raster) {
+        this.cc = cc;
+        size = cc.size ();
+        shapes = new Polygon[size];
+
+        label = new int[size];
+        count = new int[size];
+        xmin = new int[size];
+        ymin = new int[size];
+        xmax = new int[size];
+        ymax = new int[size];
+        cx = new double[size];
+        cy = new double[size];
+        mxx = new double[size];
+        myy = new double[size];
+        mxy = new double[size];
+        perimeter = new int[size];
+        if (raster != null) {
+            sum = new long[size];
+            sumsq = new long[size];
+        }
+        else {
+            sum = sumsq = null;
+        }
+
+        long[] sx = new long[size], sy = new long[size];
+        long[] sxx = new long[size], syy = new long[size], sxy = new long[size];
+        int[] adjacent = new int[size];
+        int[] samples = raster != null ? new int[cc.width] : null;
+
+        for (int k = 0; k < size; ++k) {
+            label[k] = k + 1;
+            xmin[k] = ymin[k] = Integer.MAX_VALUE;
+            xmax[k] = ymax[k] = -1;
+        }
+
+        for (int y = 0; y < cc.height; ++y) {
+            int prev = y > 0 ? cc.rows[y - 1] : 0, prev1 = cc.rows[y];
+            for (int r = cc.rows[y]; r < cc.rows[y + 1]; ++r) {
+                int k = cc.labels[r];
+                int x0 = cc.runx0[r], x1 = cc.runx1[r] - 1; // inclusive
+                long n = x1 - x0 + 1;
+
+                count[k] += n;
+                if (x0 < xmin[k]) xmin[k] = x0;
+                if (x1 > xmax[k]) xmax[k] = x1;
+                if (y < ymin[k]) ymin[k] = y;
+                if (y > ymax[k]) ymax[k] = y;
+
+                // closed form sums over the run
+                long rx = (x0 + x1) * n / 2;
+                long rxx = squares (x1) - squares (x0 - 1);
+                sx[k] += rx;
+                sy[k] += n * y;
+                sxx[k] += rxx;
+                syy[k] += n * y * y;
+                sxy[k] += rx * y;
+
+                // pixel pairs within the run and with the row above; a
+                //  vertical pair always belongs to the same component
+                adjacent[k] += n - 1;
+                while (prev < prev1 && cc.runx1[prev] <= x0)
+                    ++prev;
+                for (int p = prev; p < prev1 && cc.runx0[p] <= x1; ++p)
+                    adjacent[k] += Math.min (x1 + 1, cc.runx1[p])
+                        - Math.max (x0, cc.runx0[p]);
+
+                if (raster != null) {
+                    raster.getSamples (x0, y, (int) n, 1, 0, samples);
+                    long s = 0, ss = 0;
+                    for (int i = 0; i < n; ++i) {
+                        s += samples[i];
+                        ss += (long) samples[i] * samples[i];
+                    }
+                    sum[k] += s;
+                    sumsq[k] += ss;
+                }
+            }
+        }
+
+        for (int k = 0; k < size; ++k) {
+            double n = count[k];
+            cx[k] = sx[k] / n;
+            cy[k] = sy[k] / n;
+            mxx[k] = sxx[k] / n - cx[k] * cx[k];
+            myy[k] = syy[k] / n - cy[k] * cy[k];
+            mxy[k] = sxy[k] / n - cx[k] * cy[k];
+            perimeter[k] = 4 * count[k] - 2 * adjacent[k];
+        }
+    }
+
+    // 0^2 + 1^2 + ... + m^2
+    static long squares (long m) {
+        return m < 1 ? 0 : m * (m + 1) * (2 * m + 1) / 6;
+    }
+
+    public int size () { return size; }
+    public ConnectedComponents getComponents () { return cc; }
+
+    public Rectangle getBounds (int k) {
+        return new Rectangle (xmin[k], ymin[k], xmax[k] - xmin[k] + 1,
+                              ymax[k] - ymin[k] + 1);
+    }
+
+    /*
+     * true if the convex hull of component k has a nonzero width and
+     * height; these are the components that
+     * Bitmap.polyConnectedComponents() returns
+     */
+    public boolean isPolygon (int k) {
+        return xmax[k] > xmin[k] && ymax[k] > ymin[k];
+    }
+
+    public double mean (int k) {
+        if (sum == null)
+            throw new IllegalStateException ("No intensity columns!");
+        return (double) sum[k] / count[k];
+    }
+
+    public double variance (int k) {
+        if (sumsq == null)
+            throw new IllegalStateException ("No intensity columns!");
+        double m = mean (k);
+        return Math.max (0., (double) sumsq[k] / count[k] - m * m);
+    }
+
+    /*
+     * convex hull of component k; it's built on first use
+     */
+    public Shape getShape (int k) {
+        synchronized (shapes) {
+            if (shapes[k] == null)
+                shapes[k] = cc.getPolygon (k);
+            return shapes[k];
+        }
+    }
+}
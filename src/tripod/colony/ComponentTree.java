@@ -0,0 +1,290 @@
+package tripod.colony;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+
+import tripod.colony.Grayscale.Channel;
+
+/**
+ * The 8-connected components of every threshold of a channel as a
+ * tree (max-tree for the pixels above a threshold, min-tree for the
+ * pixels below it), built from one union-find pass over the pixels in
+ * intensity order instead of labeling a bitmap per threshold. The
+ * thresholds follow Util.threshold(): a threshold t keeps the pixels
+ * below t if it's inverted (see ThresholdStack.isInverted()) and the
+ * pixels above t otherwise, so the low thresholds form a min-tree and
+ * the high ones a max-tree.
+ *
+ * A node is a set of pixels, so a component that is the same over a
+ * range of thresholds is a single node; its threshold is the highest
+ * of the range. Nodes are numbered children first and keep their
+ * area, bounds, intensity sum and sum of squares and convex hull as
+ * columns, as in ComponentTable. The hull of a node is built from the
+ * hulls of its children and its new pixels only.
+ *
+ * All pixels are in the tree, so if there are pixels below tmin or
+ * above tmax their components are nodes with thresholds outside of
+ * [tmin, tmax]; these are always below the nodes in the range.
+ */
+public class ComponentTree {
+    final ThresholdStack stack;
+    final int width, height, stride;
+    final int t0; // first threshold that isn't inverted
+
+    int size;
+    int[] parent = new int[64]; // parent node or -1
+    int[] threshold = new int[64];
+    int[] count = new int[64]; // number of pixels
+    int[] xmin = new int[64], ymin = new int[64];
+    int[] xmax = new int[64], ymax = new int[64]; // inclusive bounds
+    long[] sum = new long[64], sumsq = new long[64];
+    Polygon[] hulls = new Polygon[64];
+
+    // union-find over the pixels; a root is the first pixel of its
+    //  component in raster order and holds its stats
+    final Bitmap on;
+    final int[] root, area, x0, x1, y1;
+    final long[] s1, s2;
+    final int[] node; // current node of a root or -1
+    final int[] slot, stamp; // per level index of a root
+    int level;
+
+    // nodes whose component was merged during the current level and a
+    //  pixel of the component they were merged into
+    int[] pending = new int[64], pendingRoot = new int[64];
+    int npending;
+
+    /*
+     * the tree of the thresholds NucleiSegmentation uses, i.e., the
+     * ones strictly between the min and max intensity
+     */
+    public ComponentTree (Channel channel) {
+        this (new ThresholdStack (channel), channel.pmin + 1, channel.pmax - 1);
+    }
+
+    public ComponentTree (ThresholdStack stack, int tmin, int tmax) {
+        this.stack = stack;
+        width = stack.width ();
+        height = stack.height ();
+        stride = stack.wordline << 6;
+        on = new Bitmap (width, height);
+        int n = width * height;
+        root = new int[n];
+        area = new int[n];
+        x0 = new int[n];
+        x1 = new int[n];
+        y1 = new int[n];
+        s1 = new long[n];
+        s2 = new long[n];
+        node = new int[n];
+        slot = new int[n];
+        stamp = new int[n];
+
+        int t = tmin;
+        while (t <= tmax && stack.isInverted (t))
+            ++t;
+        t0 = t;
+
+        // min-tree: the pixels below t are the levels up to t-1
+        Arrays.fill (node, -1);
+        int first = size;
+        for (int v = 0; v + 1 < t0; ++v)
+            level (v, false);
+        for (int k = first; k < size; ++k)
+            if (threshold[k] < 0)
+                threshold[k] = t0 - 1; // still a component at the end
+
+        // max-tree: the pixels above t are the levels from t+1 down
+        on.clear ();
+        Arrays.fill (node, -1);
+        for (int v = 255; v > t0; --v)
+            level (v, true);
+    }
+
+    public int size () { return size; }
+    public int parent (int k) { return parent[k]; }
+    public int threshold (int k) { return threshold[k]; }
+    public int count (int k) { return count[k]; }
+
+    /*
+     * whether node k is of the min-tree, i.e., its pixels are the ones
+     * below its threshold; parent() never crosses from one tree to the
+     * other
+     */
+    public boolean isInverted (int k) { return threshold[k] < t0; }
+
+    public double mean (int k) {
+        return (double) sum[k] / count[k];
+    }
+
+    public double variance (int k) {
+        double m = mean (k);
+        return Math.max (0., (double) sumsq[k] / count[k] - m * m);
+    }
+
+    public Rectangle getBounds (int k) {
+        return new Rectangle (xmin[k], ymin[k], xmax[k] - xmin[k] + 1,
+                              ymax[k] - ymin[k] + 1);
+    }
+
+    /*
+     * components whose bounding box is more than a pixel in width and
+     * height, as in ComponentTable.isPolygon()
+     */
+    public boolean isPolygon (int k) {
+        return xmax[k] > xmin[k] && ymax[k] > ymin[k];
+    }
+
+    /*
+     * convex hull of the pixels of node k; the same hull as
+     * ConnectedComponents.getPolygon() of the component
+     */
+    public Polygon getShape (int k) {
+        return hulls[k];
+    }
+
+    /*
+     * add the pixels of intensity v and make a node of every component
+     * that changed
+     */
+    void level (int v, boolean max) {
+        ++level;
+        npending = 0;
+        int from = stack.start[v], to = stack.start[v + 1];
+        for (int i = from; i < to; ++i) {
+            int bit = stack.index[i];
+            int y = bit / stride, x = bit - y * stride;
+            add (x, y, v, max);
+        }
+
+        // the new pixels and the hulls of the merged nodes of each
+        //  component that changed
+        List<List<Point2D>> points = new ArrayList<> ();
+        List<Integer> roots = new ArrayList<> ();
+        for (int i = from; i < to; ++i) {
+            int bit = stack.index[i];
+            int y = bit / stride, x = bit - y * stride;
+            int r = find (y * width + x);
+            if (stamp[r] != level) {
+                stamp[r] = level;
+                slot[r] = roots.size ();
+                roots.add (r);
+                points.add (new ArrayList<> ());
+            }
+            points.get (slot[r]).add (new Point (x, y));
+        }
+        for (int i = 0; i < npending; ++i) {
+            Polygon hull = hulls[pending[i]];
+            List<Point2D> pts = points.get (slot[find (pendingRoot[i])]);
+            for (int j = 0; j < hull.npoints; ++j)
+                pts.add (new Point (hull.xpoints[j], hull.ypoints[j]));
+        }
+
+        int first = size;
+        for (int j = 0; j < roots.size (); ++j) {
+            int r = roots.get (j);
+            int k = newNode ();
+            threshold[k] = max ? v - 1 : -1; // min-tree nodes close later
+            count[k] = area[r];
+            xmin[k] = x0[r];
+            xmax[k] = x1[r];
+            ymin[k] = r / width;
+            ymax[k] = y1[r];
+            sum[k] = s1[r];
+            sumsq[k] = s2[r];
+            List<Point2D> pts = points.get (j);
+            hulls[k] = GeomUtil.convexHull (pts.toArray (new Point2D[0]));
+            node[r] = k;
+        }
+        for (int i = 0; i < npending; ++i)
+            parent[pending[i]] = first + slot[find (pendingRoot[i])];
+    }
+
+    void add (int x, int y, int v, boolean max) {
+        int p = y * width + x;
+        on.set (x, y, true);
+        root[p] = p;
+        area[p] = 1;
+        x0[p] = x1[p] = x;
+        y1[p] = y;
+        s1[p] = v;
+        s2[p] = v * v;
+        node[p] = -1;
+        for (int dy = -1; dy <= 1; ++dy) {
+            int yy = y + dy;
+            if (yy < 0 || yy >= height)
+                continue;
+            for (int dx = -1; dx <= 1; ++dx) {
+                int xx = x + dx;
+                if (xx >= 0 && xx < width && (dx != 0 || dy != 0)
+                    && on.isOn (xx, yy))
+                    union (p, yy * width + xx, v, max);
+            }
+        }
+    }
+
+    int find (int p) {
+        while (root[p] != p)
+            p = root[p] = root[root[p]];
+        return p;
+    }
+
+    void union (int p, int q, int v, boolean max) {
+        int r = find (p), s = find (q);
+        if (r == s)
+            return;
+        if (s < r) {
+            int t = r; r = s; s = t;
+        }
+        close (r, r, v, max);
+        close (s, r, v, max);
+        root[s] = r;
+        area[r] += area[s];
+        x0[r] = Math.min (x0[r], x0[s]);
+        x1[r] = Math.max (x1[r], x1[s]);
+        y1[r] = Math.max (y1[r], y1[s]);
+        s1[r] += s1[s];
+        s2[r] += s2[s];
+    }
+
+    // the node of component c becomes a child of the one that replaces
+    //  it at this level
+    void close (int c, int r, int v, boolean max) {
+        int k = node[c];
+        if (k >= 0) {
+            if (!max)
+                threshold[k] = v; // the last threshold below level v
+            if (npending == pending.length) {
+                pending = Arrays.copyOf (pending, 2 * npending);
+                pendingRoot = Arrays.copyOf (pendingRoot, 2 * npending);
+            }
+            pending[npending] = k;
+            pendingRoot[npending++] = r;
+            node[c] = -1;
+        }
+    }
+
+    int newNode () {
+        if (size == parent.length) {
+            int n = 2 * size;
+            parent = Arrays.copyOf (parent, n);
+            threshold = Arrays.copyOf (threshold, n);
+            count = Arrays.copyOf (count, n);
+            xmin = Arrays.copyOf (xmin, n);
+            ymin = Arrays.copyOf (ymin, n);
+            xmax = Arrays.copyOf (xmax, n);
+            ymax = Arrays.copyOf (ymax, n);
+            sum = Arrays.copyOf (sum, n);
+            sumsq = Arrays.copyOf (sumsq, n);
+            hulls = Arrays.copyOf (hulls, n);
+        }
+        parent[size] = -1;
+        return size++;
+    }
+}
@@ -0,0 +1,529 @@
+package tripod.colony;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import java.awt.Shape;
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+/**
+ * 8-connected component labeling of a Bitmap. The foreground is first
+ * decomposed into horizontal runs (read a word at a time), then runs
+ * that touch a run in the previous row are merged with a union-find
+ * over int run indices. Memory scales with the number of runs rather
+ * than the number of pixels and there is no limit on the number of
+ * components. Components are numbered 0..size()-1 in raster order of
+ * their first pixel.
+ *
+ * Runs are numbered in raster order too, and a union always links the
+ * larger root to the smaller one, so the root of each component is its
+ * first run no matter in which order the unions are done.
+ */
+public class ConnectedComponents {
+    final int width, height;
+
+    int nruns;
+    int[] runy, runx0, runx1; // row and [x0, x1) of each run
+    int[] parent; // union-find over runs
+    int[] rows; // rows[y] is the index of the first run in row y
+    int[] labels; // component of each run
+    int ncomps;
+    // runs grouped by component; see groupRuns()
+    int[] start;
+    volatile int[] order;
+
+    public ConnectedComponents (Bitmap bitmap) {
+        width = bitmap.width ();
+        height = bitmap.height ();
+
+        Runs runs = new Runs (bitmap, 0, height);
+        nruns = runs.nruns;
+        runy = runs.runy;
+        runx0 = runs.runx0;
+        runx1 = runs.runx1;
+        parent = runs.parent;
+        rows = runs.rows;
+        label ();
+    }
+
+    /*
+     * parallel version; the image is split into horizontal bands that
+     * are labeled independently on the pool, then the runs on either
+     * side of each seam are merged with a concurrent union-find. The
+     * result is the same as the sequential version.
+     */
+    public ConnectedComponents (Bitmap bitmap, ForkJoinPool pool) {
+        width = bitmap.width ();
+        height = bitmap.height ();
+        new Bands (bitmap, pool).merge (this);
+        label ();
+    }
+
+    /*
+     * the runs of the rows [y0, y1) of a bitmap merged into components
+     * within the band
+     */
+    static class Runs {
+        final int y0, y1;
+        int nruns;
+        int[] runy, runx0, runx1, parent;
+        final int[] rows; // rows[y-y0] is the index of the first run in row y
+
+        Runs (Bitmap bitmap, int y0, int y1) {
+            this.y0 = y0;
+            this.y1 = y1;
+
+            int capacity = Math.max (16, y1 - y0);
+            runy = new int[capacity];
+            runx0 = new int[capacity];
+            runx1 = new int[capacity];
+            parent = new int[capacity];
+            rows = new int[y1 - y0 + 1];
+
+            int wordline = bitmap.wordline ();
+            for (int y = y0, prev = 0; y < y1; ++y) {
+                int first = rows[y - y0] = nruns;
+                extractRuns (bitmap.words, y * wordline, wordline,
+                             bitmap.width (), y);
+                if (y > y0)
+                    merge (prev, first, first, nruns);
+                prev = first;
+            }
+            rows[y1 - y0] = nruns;
+        }
+
+        /*
+         * append the runs of the row starting at words[offset]
+         */
+        void extractRuns (long[] words, int offset, int wordline,
+                          int width, int y) {
+            int start = -1;
+            for (int i = 0; i < wordline; ++i) {
+                long w = words[offset + i];
+                int base = i << 6;
+                // b is the number of bits of w already consumed; the zeros
+                //  shifted in at the bottom never look like a transition
+                for (int b = 0; b < 64; ) {
+                    if (start < 0) {
+                        long rest = w << b;
+                        if (rest == 0)
+                            break;
+                        b += Long.numberOfLeadingZeros (rest);
+                        start = base + b;
+                    }
+                    else {
+                        long rest = ~w << b;
+                        if (rest == 0)
+                            break;
+                        b += Long.numberOfLeadingZeros (rest);
+                        addRun (y, start, base + b);
+                        start = -1;
+                    }
+                }
+            }
+
+            if (start >= 0) // run extends to the end of the row
+                addRun (y, start, Math.min (width, wordline << 6));
+        }
+
+        void addRun (int y, int x0, int x1) {
+            if (nruns == runy.length) {
+                int capacity = nruns + (nruns >> 1);
+                runy = Arrays.copyOf (runy, capacity);
+                runx0 = Arrays.copyOf (runx0, capacity);
+                runx1 = Arrays.copyOf (runx1, capacity);
+                parent = Arrays.copyOf (parent, capacity);
+            }
+            runy[nruns] = y;
+            runx0[nruns] = x0;
+            runx1[nruns] = x1;
+            parent[nruns] = nruns;
+            ++nruns;
+        }
+
+        /*
+         * union the runs [i, i1) of one row with the runs [j, j1) of the
+         * next row; two runs are 8-connected if they overlap after one of
+         * them is extended by a pixel on both sides
+         */
+        void merge (int i, int i1, int j, int j1) {
+            while (i < i1 && j < j1) {
+                if (runx0[i] <= runx1[j] && runx0[j] <= runx1[i])
+                    union (parent, i, j);
+                if (runx1[i] < runx1[j]) ++i;
+                else ++j;
+            }
+        }
+    }
+
+    static int find (int[] parent, int r) {
+        while (parent[r] != r) {
+            parent[r] = parent[parent[r]]; // path halving
+            r = parent[r];
+        }
+        return r;
+    }
+
+    static void union (int[] parent, int a, int b) {
+        a = find (parent, a);
+        b = find (parent, b);
+        if (a < b) parent[b] = a;
+        else if (b < a) parent[a] = b;
+    }
+
+    /*
+     * lock-free versions of find() and union(); parent pointers only
+     * ever decrease, so a stale read is still an ancestor and a root
+     * that loses the race is simply looked up again
+     */
+    static int find (AtomicIntegerArray parent, int r) {
+        for (;;) {
+            int p = parent.get (r);
+            if (p == r)
+                return r;
+            int g = parent.get (p);
+            if (g != p)
+                parent.compareAndSet (r, p, g);
+            r = p;
+        }
+    }
+
+    static void union (AtomicIntegerArray parent, int a, int b) {
+        for (;;) {
+            a = find (parent, a);
+            b = find (parent, b);
+            if (a == b)
+                return;
+            if (a > b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (parent.compareAndSet (b, b, a))
+                return;
+        }
+    }
+
+    void label () {
+        labels = new int[nruns];
+        ncomps = 0;
+        for (int r = 0; r < nruns; ++r) {
+            int root = find (parent, r);
+            labels[r] = root == r ? ncomps++ : labels[root];
+        }
+    }
+
+    /*
+     * minimum number of rows per band for the parallel version
+     */
+    static final int MIN_BAND = 32;
+
+    static class Bands {
+        final Bitmap bitmap;
+        final ForkJoinPool pool;
+        final int height, rows, nbands;
+        final Runs[] runs;
+        final int[] offsets; // index of the first run of each band
+        AtomicIntegerArray parent;
+        int[] runy, runx0, runx1;
+
+        Bands (Bitmap bitmap, ForkJoinPool pool) {
+            this.bitmap = bitmap;
+            this.pool = pool;
+            height = bitmap.height ();
+
+            int n = Math.max (1, pool.getParallelism () * 4);
+            rows = Math.max (MIN_BAND, (height + n - 1) / n);
+            nbands = Math.max (1, (height + rows - 1) / rows);
+            runs = new Runs[nbands];
+            offsets = new int[nbands + 1];
+        }
+
+        void merge (ConnectedComponents cc) {
+            pool.invoke (new BandTask (this, 0, nbands, BandTask.LABEL));
+
+            for (int b = 0; b < nbands; ++b)
+                offsets[b + 1] = offsets[b] + runs[b].nruns;
+            int nruns = offsets[nbands];
+            runy = new int[nruns];
+            runx0 = new int[nruns];
+            runx1 = new int[nruns];
+            parent = new AtomicIntegerArray (nruns);
+
+            pool.invoke (new BandTask (this, 0, nbands, BandTask.COPY));
+            pool.invoke (new BandTask (this, 1, nbands, BandTask.SEAM));
+
+            cc.nruns = nruns;
+            cc.runy = runy;
+            cc.runx0 = runx0;
+            cc.runx1 = runx1;
+            cc.parent = new int[nruns];
+            for (int r = 0; r < nruns; ++r)
+                cc.parent[r] = parent.get (r);
+            cc.rows = new int[height + 1];
+            for (int b = 0; b < nbands; ++b) {
+                Runs r = runs[b];
+                for (int y = r.y0; y < r.y1; ++y)
+                    cc.rows[y] = offsets[b] + r.rows[y - r.y0];
+            }
+            cc.rows[height] = nruns;
+        }
+
+        void label (int band) {
+            runs[band] = new Runs (bitmap, band * rows,
+                                   Math.min (height, (band + 1) * rows));
+        }
+
+        void copy (int band) {
+            Runs r = runs[band];
+            int off = offsets[band];
+            System.arraycopy (r.runy, 0, runy, off, r.nruns);
+            System.arraycopy (r.runx0, 0, runx0, off, r.nruns);
+            System.arraycopy (r.runx1, 0, runx1, off, r.nruns);
+            for (int i = 0; i < r.nruns; ++i)
+                parent.set (off + i, off + r.parent[i]);
+        }
+
+        // merge the last row of band-1 with the first row of band
+        void seam (int band) {
+            Runs above = runs[band - 1], below = runs[band];
+            int i = offsets[band - 1] + above.rows[above.y1 - above.y0 - 1];
+            int i1 = offsets[band];
+            int j = offsets[band], j1 = j + below.rows[1];
+            while (i < i1 && j < j1) {
+                if (runx0[i] <= runx1[j] && runx0[j] <= runx1[i])
+                    union (parent, i, j);
+                if (runx1[i] < runx1[j]) ++i;
+                else ++j;
+            }
+        }
+    }
+
+    static class BandTask extends RecursiveAction {
+        static final int LABEL = 0;
+        static final int COPY = 1;
+        static final int SEAM = 2;
+
+        final Bands bands;
+        final int lo, hi, phase;
+
+        BandTask (Bands bands, int lo, int hi, int phase) {
+            this.bands = bands;
+            this.lo = lo;
+            this.hi = hi;
+            this.phase = phase;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll (new BandTask (bands, lo, mid, phase),
+                           new BandTask (bands, mid, hi, phase));
+            }
+            else if (hi > lo) {
+                switch (phase) {
+                case LABEL: bands.label (lo); break;
+                case COPY: bands.copy (lo); break;
+                case SEAM: bands.seam (lo); break;
+                }
+            }
+        }
+    }
+
+    public int size () { return ncomps; }
+    public int width () { return width; }
+    public int height () { return height; }
+    public int getRunCount () { return nruns; }
+
+    /*
+     * bounding boxes of all components as [x0, y0, x1, y1) quadruples
+     */
+    public int[] getBounds () {
+        int[] bounds = new int[4 * ncomps];
+        for (int k = 0; k < ncomps; ++k) {
+            bounds[4 * k] = Integer.MAX_VALUE;
+            bounds[4 * k + 1] = Integer.MAX_VALUE;
+        }
+        for (int r = 0; r < nruns; ++r) {
+            int k = 4 * labels[r];
+            bounds[k] = Math.min (bounds[k], runx0[r]);
+            bounds[k + 1] = Math.min (bounds[k + 1], runy[r]);
+            bounds[k + 2] = Math.max (bounds[k + 2], runx1[r]);
+            bounds[k + 3] = Math.max (bounds[k + 3], runy[r] + 1);
+        }
+        return bounds;
+    }
+
+    /*
+     * group the run indices by component; the runs of component k are
+     * order[start[k]] ... order[start[k+1]-1] in raster order
+     */
+    synchronized void groupRuns () {
+        if (order != null)
+            return;
+        int[] start = new int[ncomps + 1];
+        for (int r = 0; r < nruns; ++r)
+            ++start[labels[r] + 1];
+        for (int k = 0; k < ncomps; ++k)
+            start[k + 1] += start[k];
+        int[] next = Arrays.copyOf (start, ncomps);
+        int[] order = new int[nruns];
+        for (int r = 0; r < nruns; ++r)
+            order[next[labels[r]]++] = r;
+        this.start = start;
+        this.order = order;
+    }
+
+    public List<Shape> getRectangles () {
+        int[] bounds = getBounds ();
+        List<Shape> comps = new ArrayList<Shape> ();
+        for (int k = 0; k < ncomps; ++k) {
+            comps.add (new Rectangle
+                       (bounds[4 * k], bounds[4 * k + 1],
+                        bounds[4 * k + 2] - bounds[4 * k],
+                        bounds[4 * k + 3] - bounds[4 * k + 1]));
+        }
+        return comps;
+    }
+
+    /*
+     * convex hull of each component; components that are only a single
+     * row or column wide are skipped
+     */
+    public List<Shape> getPolygons () {
+        return getPolygons (null);
+    }
+
+    /*
+     * same as getPolygons() but the hulls are built on the pool if it's
+     * not null
+     */
+    public List<Shape> getPolygons (ForkJoinPool pool) {
+        Polygon[] hulls = new Polygon[ncomps];
+        HullTask task = new HullTask (this, hulls, 0, ncomps);
+        if (pool != null) pool.invoke (task);
+        else task.hulls (0, ncomps);
+
+        List<Shape> comps = new ArrayList<Shape> ();
+        for (Polygon hull : hulls) {
+            if (hull != null) {
+                Rectangle r = hull.getBounds ();
+                if (r.width > 0 && r.height > 0) {
+                    comps.add (hull);
+                }
+            }
+        }
+        return comps;
+    }
+
+    static class HullTask extends RecursiveAction {
+        static final int MIN_COMPS = 256;
+
+        final ConnectedComponents cc;
+        final Polygon[] hulls;
+        final int lo, hi;
+        final int[] bounds;
+
+        HullTask (ConnectedComponents cc, Polygon[] hulls, int lo, int hi) {
+            this.cc = cc;
+            this.hulls = hulls;
+            this.lo = lo;
+            this.hi = hi;
+            bounds = cc.getBounds ();
+            cc.groupRuns ();
+        }
+
+        HullTask (HullTask parent, int lo, int hi) {
+            cc = parent.cc;
+            hulls = parent.hulls;
+            bounds = parent.bounds;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo > MIN_COMPS) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll (new HullTask (this, lo, mid),
+                           new HullTask (this, mid, hi));
+            }
+            else {
+                hulls (lo, hi);
+            }
+        }
+
+        void hulls (int lo, int hi) {
+            for (int k = lo; k < hi; ++k) {
+                if (bounds[4 * k + 2] - bounds[4 * k] > 1
+                    && bounds[4 * k + 3] - bounds[4 * k + 1] > 1)
+                    hulls[k] = cc.getPolygon (k);
+            }
+        }
+    }
+
+    /*
+     * convex hull of component k; the hull of a set of runs only
+     * depends on the run end points
+     */
+    public Polygon getPolygon (int k) {
+        if (order == null)
+            groupRuns ();
+        List<Point> pts = new ArrayList<Point> ();
+        for (int i = start[k]; i < start[k + 1]; ++i) {
+            int r = order[i];
+            pts.add (new Point (runx0[r], runy[r]));
+            if (runx1[r] - runx0[r] > 1)
+                pts.add (new Point (runx1[r] - 1, runy[r]));
+        }
+        return GeomUtil.convexHull (pts.toArray (new Point[0]));
+    }
+
+    public ComponentTable getTable () {
+        return new ComponentTable (this);
+    }
+
+    /*
+     * feature table including intensity statistics from band 0 of raster
+     */
+    public ComponentTable getTable (Raster raster) {
+        return new ComponentTable (this, raster);
+    }
+
+    /*
+     * label image with k+1 for the pixels of component k
+     */
+    public LabelImage getLabelImage () {
+        return getLabelImage (false);
+    }
+
+    public LabelImage getLabelImage (boolean direct) {
+        LabelImage image = new LabelImage (width, height, ncomps, direct);
+        for (int r = 0; r < nruns; ++r)
+            image.fill (runy[r], runx0[r], runx1[r], labels[r] + 1);
+        return image;
+    }
+
+    public List<Shape> getShapes (Bitmap.Bbox shape) {
+        return getShapes (shape, null);
+    }
+
+    public List<Shape> getShapes (Bitmap.Bbox shape, ForkJoinPool pool) {
+        switch (shape) {
+        case Polygon:
+            return getPolygons (pool);
+
+        case Rectangular:
+        default:
+            return getRectangles ();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package tripod.colony;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import tripod.colony.Bitmap.ChainCode;
+import tripod.colony.Bitmap.ChainCodeSequence;
+
+/**
+ * All borders of a bitmap found by the border following algorithm of
+ * Suzuki and Abe (Topological structural analysis of digitized binary
+ * images by border following, CVGIP 30, 32-46, 1985) in a single
+ * raster scan. Pixels that are on are 8-connected. Each border is
+ * either the outer border of a component or the border of a hole in
+ * it, and its parent is the border that immediately encloses it (-1
+ * for the outer borders of the components that aren't inside a hole).
+ *
+ * A border is a closed chain code: it starts at its first pixel in
+ * raster order and its last move returns to that pixel. The moves of
+ * all borders are stored in one byte[] as ChainCode ordinals.
+ *
+ * The outer border of a component that is one pixel wide and has no
+ * holes (e.g., a branch of a skeleton) encloses no pixels; following
+ * it goes out along each stroke and back, so every move is undone by
+ * the opposite move. isOpen() tells these borders apart and
+ * getStrokes() cuts them into open strokes.
+ */
+public class Contours {
+    // ChainCode.values () order: E NE N NW W SW S SE
+    static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    static final int[] DY = {0, -1, -1, -1, 0, 1, 1, 1};
+    static final ChainCode[] CODES = ChainCode.values ();
+
+    final int width, height;
+    int size;
+    int[] startx = new int[16], starty = new int[16];
+    int[] parent = new int[16];
+    boolean[] hole = new boolean[16];
+    int[] offset = new int[17]; // moves of border i: offset[i]..offset[i+1]
+    byte[] codes = new byte[256];
+
+    public Contours (Bitmap bitmap) {
+        width = bitmap.width ();
+        height = bitmap.height ();
+
+        // padded copy of the bitmap; border k is labeled k+2 (1 is the
+        //  frame, which counts as a hole border)
+        int W = width + 2;
+        int[] f = new int[W * (height + 2)];
+        int wordline = bitmap.wordline ();
+        for (int y = 0; y < height; ++y) {
+            for (int k = 0; k < wordline; ++k) {
+                long w = bitmap.words[y * wordline + k];
+                while (w != 0) {
+                    int b = Long.numberOfLeadingZeros (w);
+                    f[(y + 1) * W + (k << 6) + b + 1] = 1;
+                    w &= ~(Long.MIN_VALUE >>> b);
+                }
+            }
+        }
+
+        int[] off = new int[8];
+        for (int k = 0; k < 8; ++k)
+            off[k] = DY[k] * W + DX[k];
+
+        for (int y = 1; y <= height; ++y) {
+            int lnbd = 1; // last border seen on this row
+            for (int x = 1, p = y * W + 1; x <= width; ++x, ++p) {
+                int v = f[p];
+                if (v == 0)
+                    continue;
+
+                boolean outer = v == 1 && f[p - 1] == 0;
+                if (outer || (v >= 1 && f[p + 1] == 0)) {
+                    if (!outer && v > 1)
+                        lnbd = v;
+
+                    // the enclosing border follows from the last border
+                    int last = lnbd - 2;
+                    boolean lastHole = last < 0 || hole[last];
+                    int lastParent = last < 0 ? -1 : parent[last];
+                    int up = outer == lastHole ? last : lastParent;
+                    follow (f, off, p, outer ? 4 : 0, x - 1, y - 1,
+                            !outer, up);
+                }
+
+                v = f[p];
+                if (v != 1)
+                    lnbd = Math.abs (v);
+            }
+        }
+    }
+
+    /*
+     * follow the border through p0 starting from its neighbor in
+     * direction d (which is off); see step 3 of the algorithm
+     */
+    void follow (int[] f, int[] off, int p0, int d, int x, int y,
+                 boolean isHole, int up) {
+        int k = size++;
+        if (k == startx.length) {
+            int n = 2 * k;
+            startx = Arrays.copyOf (startx, n);
+            starty = Arrays.copyOf (starty, n);
+            parent = Arrays.copyOf (parent, n);
+            hole = Arrays.copyOf (hole, n);
+            offset = Arrays.copyOf (offset, n + 1);
+        }
+        startx[k] = x;
+        starty[k] = y;
+        hole[k] = isHole;
+        parent[k] = up;
+        int nbd = k + 2, ncodes = offset[k];
+
+        // 3.1: first pixel clockwise from d
+        int d1 = -1;
+        for (int t = 0; t < 8; ++t) {
+            int c = (d - t) & 7;
+            if (f[p0 + off[c]] != 0) {
+                d1 = c;
+                break;
+            }
+        }
+
+        if (d1 < 0) { // isolated pixel
+            f[p0] = -nbd;
+        }
+        else {
+            int p1 = p0 + off[d1], p3 = p0;
+            int back = d1; // direction from p3 to the previous pixel
+            for (;;) {
+                // 3.3: counterclockwise from the previous pixel
+                boolean eastZero = false;
+                int c = back;
+                for (int t = 1; t <= 8; ++t) {
+                    c = (back + t) & 7;
+                    if (f[p3 + off[c]] != 0)
+                        break;
+                    if (c == 0)
+                        eastZero = true;
+                }
+
+                // 3.4
+                if (eastZero)
+                    f[p3] = -nbd;
+                else if (f[p3] == 1)
+                    f[p3] = nbd;
+
+                if (ncodes == codes.length)
+                    codes = Arrays.copyOf (codes, 2 * ncodes);
+                codes[ncodes++] = (byte) c;
+
+                int p4 = p3 + off[c];
+                // 3.5
+                if (p4 == p0 && p3 == p1)
+                    break;
+                back = (c + 4) & 7;
+                p3 = p4;
+            }
+        }
+        offset[k + 1] = ncodes;
+    }
+
+    public int width () { return width; }
+    public int height () { return height; }
+    public int size () { return size; }
+
+    public boolean isHole (int i) { return hole[i]; }
+
+    /*
+     * the border that immediately encloses border i or -1
+     */
+    public int getParent (int i) { return parent[i]; }
+
+    public int getStartX (int i) { return startx[i]; }
+    public int getStartY (int i) { return starty[i]; }
+
+    /*
+     * number of moves of border i; 0 for a single pixel
+     */
+    public int length (int i) { return offset[i + 1] - offset[i]; }
+
+    /*
+     * the k-th move of border i (ChainCode ordinal)
+     */
+    public int getCode (int i, int k) { return codes[offset[i] + k]; }
+
+    public ChainCode getChainCode (int i, int k) {
+        return CODES[codes[offset[i] + k]];
+    }
+
+    /*
+     * whether every move of border i is retraced by the opposite move,
+     * i.e., the border goes around a one pixel wide tree of strokes
+     */
+    public boolean isOpen (int i) {
+        int n = length (i);
+        if (n == 0)
+            return false;
+        Set<Long> edges = new HashSet<Long> ();
+        int x = startx[i], y = starty[i];
+        for (int k = offset[i]; k < offset[i + 1]; ++k) {
+            edges.add (edge (x, y, codes[k]));
+            x += DX[codes[k]];
+            y += DY[codes[k]];
+        }
+        return 2 * edges.size () == n;
+    }
+
+    /*
+     * an open border (see isOpen()) as strokes that cover each of its
+     * moves once; the first starts at an end of a stroke and goes to
+     * the next end, as does a branch from where it leaves the strokes
+     * before it. A single open stroke of n pixels is one sequence of
+     * n-1 moves. Any other border is its closed sequence.
+     */
+    public List<ChainCodeSequence> getStrokes (int i) {
+        List<ChainCodeSequence> strokes = new ArrayList<ChainCodeSequence> ();
+        if (!isOpen (i)) {
+            strokes.add (getSequence (i));
+            return strokes;
+        }
+
+        // start after a turnaround, i.e., at an end of a stroke; the
+        //  first pixel if it's one
+        int n = length (i), s = 0;
+        int x = startx[i], y = starty[i];
+        int[] c = new int[n];
+        for (int k = 0; k < n; ++k)
+            c[k] = codes[offset[i] + k];
+        if (c[0] != ((c[n - 1] + 4) & 7)) {
+            for (int k = 0; k < n; ++k) {
+                x += DX[c[k]];
+                y += DY[c[k]];
+                if (c[(k + 1) % n] == ((c[k] + 4) & 7)) {
+                    s = (k + 1) % n;
+                    break;
+                }
+            }
+        }
+
+        // the first move over an edge belongs to a stroke, the second
+        //  (back) doesn't
+        Set<Long> edges = new HashSet<Long> ();
+        ChainCodeSequence stroke = null;
+        for (int k = 0; k < n; ++k) {
+            int d = c[(s + k) % n];
+            if (edges.add (edge (x, y, d))) {
+                if (stroke == null) {
+                    stroke = new ChainCodeSequence (x, y);
+                    strokes.add (stroke);
+                }
+                stroke.append (CODES[d]);
+            }
+            else {
+                stroke = null;
+            }
+            x += DX[d];
+            y += DY[d];
+        }
+        return strokes;
+    }
+
+    // the same key for the move from (x,y) in direction c and its
+    //  opposite
+    long edge (int x, int y, int c) {
+        if (c >= 4) {
+            x += DX[c];
+            y += DY[c];
+            c -= 4;
+        }
+        return ((long) y * (width + 1) + x) * 4 + c;
+    }
+
+    public ChainCodeSequence getSequence (int i) {
+        ChainCodeSequence seq = new ChainCodeSequence (startx[i], starty[i]);
+        for (int k = offset[i]; k < offset[i + 1]; ++k)
+            seq.append (CODES[codes[k]]);
+        return seq;
+    }
+}
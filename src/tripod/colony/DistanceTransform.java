@@ -0,0 +1,274 @@
+package tripod.colony;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Distance from each pixel that is on to the nearest pixel that is off
+ * (pixels that are off have distance 0). Pixels outside the bitmap
+ * are not background, so a region touching the border is as deep as
+ * its distance to its nearest off pixel inside the bitmap. A bitmap
+ * without any off pixel has infinite distances everywhere.
+ *
+ * The Euclidean transform is exact and uses the two pass algorithm of
+ * Meijster, Roerdink and Hesselink (the lower envelope of parabolas
+ * of Felzenszwalb and Huttenlocher): first the distance to background
+ * along each column, then the lower envelope along each row. Both
+ * passes are O(pixels) and are split into bands that can run on a
+ * ForkJoinPool. The city-block transform is separable in the same
+ * way; the chamfer (3-4) transform is the usual two raster scans.
+ */
+public class DistanceTransform {
+    public enum Metric {
+        Euclidean, // values are squared distances
+        Chamfer, // 3-4 chamfer; values are 3 times the distance
+        CityBlock // values are distances
+    }
+
+    static final int MIN_BAND = 32; // rows per band of the row pass
+    static final int COLUMN_BAND = 256; // columns per band of the column pass
+
+    final int width, height;
+    final Metric metric;
+    final int[] values; // row major
+    final boolean background; // any pixel off?
+
+    public DistanceTransform (Bitmap bitmap) {
+        this (bitmap, Metric.Euclidean, null);
+    }
+
+    public DistanceTransform (Bitmap bitmap, Metric metric) {
+        this (bitmap, metric, null);
+    }
+
+    /*
+     * the passes of the Euclidean and city-block transforms are run on
+     * pool (if not null); the result is the same
+     */
+    public DistanceTransform (Bitmap bitmap, Metric metric,
+                              ForkJoinPool pool) {
+        width = bitmap.width ();
+        height = bitmap.height ();
+        this.metric = metric;
+        values = new int[width * height];
+        background = bitmap.area () < (long) width * height;
+
+        if (!background) {
+            Arrays.fill (values, Integer.MAX_VALUE);
+        }
+        else if (metric == Metric.Chamfer) {
+            chamfer (bitmap);
+        }
+        else if (pool != null) {
+            int ncols = (width + COLUMN_BAND - 1) / COLUMN_BAND;
+            pool.invoke (new Task (this, bitmap, COLUMN_BAND,
+                                   0, ncols, Task.COLUMNS));
+            int n = Math.max (1, pool.getParallelism ());
+            int rows = Math.max (MIN_BAND, (height + n - 1) / n);
+            pool.invoke (new Task (this, null, rows,
+                                   0, (height + rows - 1) / rows, Task.ROWS));
+        }
+        else {
+            columns (bitmap, 0, width);
+            rows (0, height);
+        }
+    }
+
+    static class Task extends RecursiveAction {
+        static final int COLUMNS = 0, ROWS = 1;
+
+        final DistanceTransform dt;
+        final Bitmap bitmap;
+        final int band, lo, hi, phase;
+
+        Task (DistanceTransform dt, Bitmap bitmap, int band,
+              int lo, int hi, int phase) {
+            this.dt = dt;
+            this.bitmap = bitmap;
+            this.band = band;
+            this.lo = lo;
+            this.hi = hi;
+            this.phase = phase;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll (new Task (dt, bitmap, band, lo, mid, phase),
+                           new Task (dt, bitmap, band, mid, hi, phase));
+            }
+            else if (phase == COLUMNS) {
+                dt.columns (bitmap, lo * band,
+                            Math.min (dt.width, (lo + 1) * band));
+            }
+            else {
+                dt.rows (lo * band, Math.min (dt.height, (lo + 1) * band));
+            }
+        }
+    }
+
+    /*
+     * distance to the nearest off pixel in the same column for columns
+     * [x0, x1); columns without an off pixel get width+height
+     */
+    void columns (Bitmap bitmap, int x0, int x1) {
+        int inf = width + height, wordline = bitmap.wordline ();
+        long[] words = bitmap.words;
+        for (int y = 0, off = 0; y < height; ++y, off += width) {
+            int row = y * wordline;
+            for (int x = x0; x < x1; ++x) {
+                if ((words[row + (x >> 6)] << x) < 0)
+                    values[off + x] = y > 0
+                        ? Math.min (inf, values[off - width + x] + 1) : inf;
+                else
+                    values[off + x] = 0;
+            }
+        }
+        for (int y = height - 2, off = y * width; y >= 0; --y, off -= width) {
+            for (int x = x0; x < x1; ++x) {
+                int d = values[off + width + x] + 1;
+                if (d < values[off + x])
+                    values[off + x] = d;
+            }
+        }
+    }
+
+    /*
+     * combine the column distances along rows [y0, y1)
+     */
+    void rows (int y0, int y1) {
+        int[] g = new int[width], s = new int[width], t = new int[width];
+        for (int y = y0; y < y1; ++y) {
+            int off = y * width;
+            if (metric == Metric.CityBlock) {
+                for (int x = 1; x < width; ++x)
+                    if (values[off + x - 1] + 1 < values[off + x])
+                        values[off + x] = values[off + x - 1] + 1;
+                for (int x = width - 2; x >= 0; --x)
+                    if (values[off + x + 1] + 1 < values[off + x])
+                        values[off + x] = values[off + x + 1] + 1;
+            }
+            else {
+                System.arraycopy (values, off, g, 0, width);
+                envelope (g, s, t, values, off);
+            }
+        }
+    }
+
+    /*
+     * dt[off+x] = min over i of (x-i)^2 + g[i]^2; s and t are the
+     * columns and start of the parabolas on the lower envelope
+     */
+    void envelope (int[] g, int[] s, int[] t, int[] dt, int off) {
+        int q = 0;
+        s[0] = 0;
+        t[0] = 0;
+        for (int u = 1; u < width; ++u) {
+            while (q >= 0 && f (t[q], s[q], g) > f (t[q], u, g))
+                --q;
+            if (q < 0) {
+                q = 0;
+                s[0] = u;
+            }
+            else {
+                long w = 1 + sep (s[q], u, g);
+                if (w < width) {
+                    ++q;
+                    s[q] = u;
+                    t[q] = (int) w;
+                }
+            }
+        }
+        for (int u = width - 1; u >= 0; --u) {
+            dt[off + u] = (int) f (u, s[q], g);
+            if (u == t[q])
+                --q;
+        }
+    }
+
+    static long f (int x, int i, int[] g) {
+        return (long) (x - i) * (x - i) + (long) g[i] * g[i];
+    }
+
+    // first column x > i where the parabola of u is below that of i
+    static long sep (int i, int u, int[] g) {
+        return Math.floorDiv ((long) u * u - (long) i * i
+                              + (long) g[u] * g[u] - (long) g[i] * g[i],
+                              2l * (u - i));
+    }
+
+    void chamfer (Bitmap bitmap) {
+        int inf = Integer.MAX_VALUE / 2;
+        for (int y = 0, i = 0; y < height; ++y)
+            for (int x = 0; x < width; ++x, ++i)
+                values[i] = bitmap.isOn (x, y) ? inf : 0;
+
+        for (int y = 0, i = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x, ++i) {
+                int d = values[i];
+                if (d == 0) continue;
+                if (x > 0) d = Math.min (d, values[i - 1] + 3);
+                if (y > 0) {
+                    d = Math.min (d, values[i - width] + 3);
+                    if (x > 0) d = Math.min (d, values[i - width - 1] + 4);
+                    if (x + 1 < width)
+                        d = Math.min (d, values[i - width + 1] + 4);
+                }
+                values[i] = d;
+            }
+        }
+        for (int y = height - 1, i = width * height - 1; y >= 0; --y) {
+            for (int x = width - 1; x >= 0; --x, --i) {
+                int d = values[i];
+                if (d == 0) continue;
+                if (x + 1 < width) d = Math.min (d, values[i + 1] + 3);
+                if (y + 1 < height) {
+                    d = Math.min (d, values[i + width] + 3);
+                    if (x + 1 < width)
+                        d = Math.min (d, values[i + width + 1] + 4);
+                    if (x > 0) d = Math.min (d, values[i + width - 1] + 4);
+                }
+                values[i] = d;
+            }
+        }
+    }
+
+    public int width () { return width; }
+    public int height () { return height; }
+    public Metric getMetric () { return metric; }
+
+    /*
+     * the distances in the units of the metric (see Metric) in row
+     * major order; Integer.MAX_VALUE if the bitmap has no off pixel.
+     * The array isn't copied.
+     */
+    public int[] getValues () { return values; }
+
+    public int getValue (int x, int y) { return values[y * width + x]; }
+
+    public float get (int x, int y) {
+        return distance (values[y * width + x]);
+    }
+
+    /*
+     * the distances in pixels
+     */
+    public float[] getDistances () {
+        float[] d = new float[values.length];
+        for (int i = 0; i < d.length; ++i)
+            d[i] = distance (values[i]);
+        return d;
+    }
+
+    float distance (int v) {
+        if (!background)
+            return Float.POSITIVE_INFINITY;
+        switch (metric) {
+        case Euclidean: return (float) Math.sqrt (v);
+        case Chamfer: return v / 3.f;
+        }
+        return v;
+    }
+}
@@ -5,16 +5,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.FileOutputStream;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.awt.image.BandedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.RescaleOp;
 
 import javax.imageio.ImageIO;
@@ -30,33 +37,34 @@ public class Grayscale {
     public static double G = 0.587;
     public static double B = 0.114;
 
-    interface PixelSource {
-        int get (int x, int y);
-    }
-    
     public static class Channel implements Serializable {
-        private static final long serialVersionUID = 0x12345l;
+        private static final long serialVersionUID = 0x12346l;
         
         final public int width, height;
         final public int[] histogram;
         final public double[] pmf;
-        final short[] pixels;
+        final byte[] pixels; // unsigned, row major
         final public int pmin, pmax;
+        transient DataBufferByte buffer; // see raster() and image()
+        transient Raster raster;
+        transient BufferedImage image;
 
-        Channel (int width, int height, PixelSource source) {
+        /*
+         * the channel takes ownership of the pixels
+         */
+        Channel (int width, int height, byte[] pixels) {
             this.width = width;
             this.height = height;
-            pixels = new short[width*height];
+            this.pixels = pixels;
             
             histogram = new int[256];
-            int p, s, min = 256, max = 0;
-            for (int y = 0; y < height; ++y) {
-                s = y*width;
-                for (int x = 0; x < width; ++x) {
-                    p = pixels[s+x] = (short)(source.get(x, y) & 0xff);
-                    if (p > max) max = p;
+            for (int i = 0; i < width*height; ++i)
+                ++histogram[pixels[i] & 0xff];
+            int min = 256, max = 0;
+            for (int p = 0; p < histogram.length; ++p) {
+                if (histogram[p] > 0) {
                     if (p < min) min = p;
-                    ++histogram[p];
+                    max = p;
                 }
             }
             pmin = min;
@@ -69,25 +77,57 @@ public class Grayscale {
             for (int i = 0; i < histogram.length; ++i)
                 pmf[i] = histogram[i]/mass;
         }
-        
-        public int get (int x, int y) { return pixels[y*width+x]; }
-        public Raster raster () {
-            WritableRaster raster = createByteRaster (width, height);
-            for (int y = 0, s; y < height; ++y) {
-                s = y*width;
-                for (int x = 0; x < width; ++x)
-                    raster.setSample(x, y, 0, pixels[s+x]);
-            }
+
+        public int get (int x, int y) { return pixels[y*width+x] & 0xff; }
+
+        /*
+         * the pixels as a single band byte raster; the raster is a view
+         * of the channel's pixels, not a copy, so it's built once and
+         * shared, and it can't be written to
+         */
+        public synchronized Raster raster () {
+            if (raster == null)
+                raster = new Raster (new PixelInterleavedSampleModel
+                                     (DataBuffer.TYPE_BYTE, width, height,
+                                      1, width, new int[]{0}),
+                                     buffer (), new Point ()) {};
             return raster;
         }
-        
-        public BufferedImage image () {
-            Raster raster = raster ();
-            BufferedImage img = new BufferedImage
-                (raster.getWidth(), raster.getHeight(), 
-                 BufferedImage.TYPE_BYTE_GRAY);
-            img.setData(raster);
-            return img;
+
+        /*
+         * a view of the pixels inside the rectangle, which must be inside
+         * the channel; it keeps the channel's coordinates, i.e., its
+         * origin is (r.x, r.y)
+         */
+        public Raster raster (Rectangle r) {
+            return raster().createChild
+                (r.x, r.y, r.width, r.height, r.x, r.y, null);
+        }
+
+        /*
+         * a TYPE_BYTE_GRAY image over the pixels; as with raster(), it's
+         * shared and isn't a copy, so don't draw on it or change its
+         * raster
+         */
+        public synchronized BufferedImage image () {
+            if (image == null) {
+                ColorModel cm = new ComponentColorModel
+                    (ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                     new int[]{8}, false, true, Transparency.OPAQUE,
+                     DataBuffer.TYPE_BYTE);
+                image = new BufferedImage
+                    (cm, Raster.createInterleavedRaster
+                     (buffer (), width, height, width, 1, new int[]{0},
+                      null), false, null);
+            }
+            return image;
+        }
+
+        // the one data buffer of raster() and image()
+        DataBufferByte buffer () {
+            if (buffer == null)
+                buffer = new DataBufferByte (pixels, pixels.length);
+            return buffer;
         }
 
         public void write (File out) throws IOException {
@@ -103,64 +143,49 @@ public class Grayscale {
         }
     }
 
-    static abstract class RasterPixelSource implements PixelSource {
-        final Raster raster;
-        final double[] sample;
-        RasterPixelSource (Raster raster) {
-            this.raster = raster;
-            sample = new double[raster.getNumBands()];
-        }
-
-        public abstract int get (int x, int y);
-    }
-
     public static class ChannelRGB extends Channel {
         ChannelRGB (Raster raster) {
-            super (raster.getWidth(), raster.getHeight(),
-                   new RasterPixelSource (raster) {
-                       public int get (int x, int y) {
-                           return grayscale (raster.getPixel
-                                             (x, y, sample)) & 0xff;
-                       }
-                   });
+            this (raster.getWidth(), raster.getHeight(),
+                  convert (raster, false)[0]);
+        }
+        ChannelRGB (int width, int height, byte[] pixels) {
+            super (width, height, pixels);
         }
     }
 
     public static class ChannelR extends Channel {
         ChannelR (Raster raster) {
-            super (raster.getWidth(), raster.getHeight(),
-                   new RasterPixelSource (raster) {
-                       public int get (int x, int y) {
-                           raster.getPixel(x, y, sample);
-                           return (int)(sample[0]+0.5) & 0xff;
-                       }
-                   });
+            this (raster.getWidth(), raster.getHeight(),
+                  convert (raster, true)[1]);
+        }
+        ChannelR (int width, int height, byte[] pixels) {
+            super (width, height, pixels);
         }
     }
 
     public static class ChannelG extends Channel {
         ChannelG (Raster raster) {
-            super (raster.getWidth(), raster.getHeight(),
-                   new RasterPixelSource (raster) {
-                       public int get (int x, int y) {
-                           raster.getPixel(x, y, sample);
-                           return (int)(sample[1]+0.5) & 0xff;
-                       }
-                   });
+            this (raster.getWidth(), raster.getHeight(),
+                  convert (raster, true)[2]);
+        }
+        ChannelG (int width, int height, byte[] pixels) {
+            super (width, height, pixels);
         }
     }
 
     public static class ChannelB extends Channel {
         ChannelB (Raster raster) {
-            super (raster.getWidth(), raster.getHeight(),
-                   new RasterPixelSource (raster) {
-                       public int get (int x, int y) {
-                           raster.getPixel(x, y, sample);
-                           return (int)(sample[2]+0.5) & 0xff;
-                       }
-                   });
+            this (raster.getWidth(), raster.getHeight(),
+                  convert (raster, true)[3]);
+        }
+        ChannelB (int width, int height, byte[] pixels) {
+            super (width, height, pixels);
         }
     }
+
+    static final Class<?>[] CHANNELS = {
+        ChannelRGB.class, ChannelR.class, ChannelG.class, ChannelB.class
+    };
     
     private Channel[] channels;
     private Raster raster;
@@ -172,22 +197,104 @@ public class Grayscale {
         setRaster (raster);
     }
 
-    public void setRaster (Raster raster) {
+    /*
+     * the channels are only computed when they're first asked for; the
+     * gray channel on its own and the R, G and B channels together
+     */
+    public synchronized void setRaster (Raster raster) {
         if (raster == null || raster.getNumBands() == 0) {
             throw new IllegalArgumentException ("Input raster is bogus!");
         }
 
-        List<Channel> channels = new ArrayList<>();
-        channels.add(new ChannelRGB (raster));
-        if (raster.getNumBands() > 1) {
-            channels.add(new ChannelR (raster));
-            channels.add(new ChannelG (raster));
-            channels.add(new ChannelB (raster));
-        }
-        this.channels = channels.toArray(new Channel[0]);
+        channels = new Channel[raster.getNumBands() > 1 ? 4 : 1];
         this.raster = raster;
     }
 
+    /*
+     * the pixels of the gray (0), red (1), green (2) and blue (3)
+     * channels of the raster in one pass over its rows; only the gray
+     * channel is computed unless all is true. The values are the same
+     * as grayscale() of the pixel (truncated to 8 bits) and the first
+     * three bands; bytes, shorts and packed ints are read straight
+     * from the data buffer (see Samples).
+     */
+    static byte[][] convert (Raster raster, boolean all) {
+        int width = raster.getWidth(), height = raster.getHeight();
+        int bands = raster.getNumBands();
+        byte[][] pixels = new byte[4][];
+        pixels[0] = new byte[width*height];
+        if (all)
+            for (int c = 1; c < 4; ++c)
+                pixels[c] = new byte[width*height];
+
+        int type = raster.getDataBuffer().getDataType();
+        if (!(type == DataBuffer.TYPE_BYTE || type == DataBuffer.TYPE_USHORT
+              || (type == DataBuffer.TYPE_INT && raster.getSampleModel()
+                  instanceof SinglePixelPackedSampleModel))
+            || bands == 2) {
+            // signed or fractional samples (or a missing band) go
+            //  through getPixel() and are rounded as they always were
+            double[] sample = new double[bands];
+            for (int y = 0, i = 0; y < height; ++y)
+                for (int x = 0; x < width; ++x, ++i) {
+                    raster.getPixel(x + raster.getMinX(),
+                                    y + raster.getMinY(), sample);
+                    pixels[0][i] = (byte)grayscale (sample);
+                    if (all)
+                        for (int c = 1; c < 4; ++c)
+                            pixels[c][i] = (byte)(int)(sample[c-1]+0.5);
+                }
+            return pixels;
+        }
+
+        int n = Math.min(3, bands);
+        Samples[] samples = new Samples[n];
+        int[][] rows = new int[n][width];
+        for (int b = 0; b < n; ++b)
+            samples[b] = new Samples (raster, b);
+        for (int y = 0, s = 0; y < height; ++y, s += width) {
+            for (int b = 0; b < n; ++b)
+                samples[b].row(y, rows[b]);
+            if (n == 1) {
+                for (int x = 0; x < width; ++x)
+                    pixels[0][s+x] = (byte)rows[0][x];
+            }
+            else {
+                int[] r = rows[0], g = rows[1], bl = rows[2];
+                for (int x = 0; x < width; ++x)
+                    pixels[0][s+x] = (byte)(int)
+                        (R * r[x] + G * g[x] + B * bl[x] + .5);
+            }
+            if (all) {
+                for (int c = 1; c < 4; ++c) {
+                    int[] row = rows[c-1];
+                    for (int x = 0; x < width; ++x)
+                        pixels[c][s+x] = (byte)row[x];
+                }
+            }
+        }
+        return pixels;
+    }
+
+    synchronized Channel channel (int c) {
+        if (channels[c] == null) {
+            int width = raster.getWidth(), height = raster.getHeight();
+            if (c == 0) {
+                channels[0] = new ChannelRGB
+                    (width, height, convert (raster, false)[0]);
+            }
+            else {
+                byte[][] pixels = convert (raster, true);
+                if (channels[0] == null)
+                    channels[0] = new ChannelRGB (width, height, pixels[0]);
+                channels[1] = new ChannelR (width, height, pixels[1]);
+                channels[2] = new ChannelG (width, height, pixels[2]);
+                channels[3] = new ChannelB (width, height, pixels[3]);
+            }
+        }
+        return channels[c];
+    }
+
     public Raster getRaster () { return raster; }
     public int width () { return raster != null ? raster.getWidth() : -1; }
     public int height () { return raster != null ? raster.getHeight() : -1; }
@@ -197,19 +304,19 @@ public class Grayscale {
     }
     
     public Channel getChannel (int channel) {
-        return channel < channels.length ? channels[channel] : null;
+        return channel < channels.length ? channel (channel) : null;
     }
     
     // default channel
     public Channel getChannel () {
-        return channels != null ? channels[0] : null;
+        return channels != null ? channel (0) : null;
     }
 
     public Channel getChannel (String name) {
         if (channels != null) {
             for (int i = 0; i < channels.length; ++i) {
-                if (name.equals(channels[i].getClass().getName()))
-                    return channels[i];
+                if (name.equals(CHANNELS[i].getName()))
+                    return channel (i);
             }
         }
         return null;
@@ -218,8 +325,8 @@ public class Grayscale {
     public Channel getChannel (Class<? extends Channel> cls) {
         if (channels != null) {
             for (int i = 0; i < channels.length; ++i)
-                if (cls.isAssignableFrom(channels[i].getClass()))
-                    return channels[i];
+                if (cls.isAssignableFrom(CHANNELS[i]))
+                    return channel (i);
         }
         return null;
     }
@@ -0,0 +1,310 @@
+package tripod.colony;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import java.awt.Point;
+import java.awt.geom.Line2D;
+
+/**
+ * Hough transform of the pixels of a bitmap that are on; a pixel (x,y)
+ * votes for the cells (n, r) with
+ *
+ *   rho = x cos(theta) + y sin(theta), theta = n * thetaDelta degrees
+ *   r = (rho + rmax) / rhoDelta
+ *
+ * The cosines and sines are tabulated per angle and the votes are
+ * counted in a single int[] accumulator, so no per-cell point lists
+ * are kept. Voting is split by angle, so each task owns its rows of the
+ * accumulator and can run on a ForkJoinPool without locking. Peaks are
+ * the cells that are maximal in their 3x3 neighborhood; the pixels on
+ * a peak's line are only recovered for the peaks, one pass over the
+ * pixels per angle that has a peak (also split by angle).
+ */
+public class HoughTransform {
+    static final int ANGLES = 4; // angles per task
+    static final int GRID = 64; // cell size of the segment grid
+
+    final int thetaDelta, rhoDelta;
+    final int nsteps, rmax, nrho;
+    final double[] cos, sin;
+    final int[] xs, ys; // pixels that are on, in raster order
+    final int[] votes; // votes[n * nrho + r]
+    final ForkJoinPool pool;
+
+    public HoughTransform (Bitmap bitmap, int thetaDelta, int rhoDelta) {
+        this (bitmap, thetaDelta, rhoDelta, null);
+    }
+
+    public HoughTransform (Bitmap bitmap, int thetaDelta, int rhoDelta,
+                           ForkJoinPool pool) {
+        if (thetaDelta <= 0) {
+            throw new IllegalArgumentException
+                ("Invalid delta value: " + thetaDelta);
+        }
+        if (rhoDelta <= 0) {
+            throw new IllegalArgumentException
+                ("Invalid delta value: " + rhoDelta);
+        }
+
+        int width = bitmap.width (), height = bitmap.height ();
+        this.pool = pool;
+        this.thetaDelta = thetaDelta;
+        this.rhoDelta = rhoDelta;
+        nsteps = 180 / thetaDelta;
+        rmax = (int) (0.5 + Math.sqrt (width * width + height * height));
+        nrho = 2 * rmax / rhoDelta + 1;
+
+        cos = new double[nsteps];
+        sin = new double[nsteps];
+        for (int n = 0; n < nsteps; ++n) {
+            double theta = Math.toRadians (n * thetaDelta);
+            cos[n] = Math.cos (theta);
+            sin[n] = Math.sin (theta);
+        }
+
+        int npixels = (int) bitmap.area ();
+        xs = new int[npixels];
+        ys = new int[npixels];
+        int wordline = bitmap.wordline ();
+        for (int y = 0, i = 0; y < height; ++y) {
+            for (int k = 0; k < wordline; ++k) {
+                long w = bitmap.words[y * wordline + k];
+                while (w != 0) {
+                    int b = Long.numberOfLeadingZeros (w);
+                    xs[i] = (k << 6) + b;
+                    ys[i++] = y;
+                    w &= ~(Long.MIN_VALUE >>> b);
+                }
+            }
+        }
+
+        votes = new int[nsteps * nrho];
+        run (new AngleTask (this, null, 0, nsteps));
+    }
+
+    void run (AngleTask task) {
+        if (pool != null) pool.invoke (task);
+        else task.compute ();
+    }
+
+    /*
+     * votes (or collects the support of the peaks) for the angles
+     * [lo, hi)
+     */
+    static class AngleTask extends RecursiveAction {
+        final HoughTransform ht;
+        final Support support;
+        final int lo, hi;
+
+        AngleTask (HoughTransform ht, Support support, int lo, int hi) {
+            this.ht = ht;
+            this.support = support;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo > ANGLES) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll (new AngleTask (ht, support, lo, mid),
+                           new AngleTask (ht, support, mid, hi));
+            }
+            else {
+                for (int n = lo; n < hi; ++n)
+                    if (support == null)
+                        ht.vote (n);
+                    else
+                        support.collect (n);
+            }
+        }
+    }
+
+    void vote (int n) {
+        int off = n * nrho;
+        for (int i = 0; i < xs.length; ++i)
+            ++votes[off + bin (n, xs[i], ys[i])];
+    }
+
+    int bin (int n, int x, int y) {
+        int rho = (int) (0.5 + x * cos[n] + y * sin[n]);
+        return (rho + rmax) / rhoDelta;
+    }
+
+    public int nsteps () { return nsteps; }
+    public int nrho () { return nrho; }
+    public int getVotes (int n, int r) { return votes[n * nrho + r]; }
+    public double getTheta (int cell) {
+        return Math.toRadians ((cell / nrho) * thetaDelta);
+    }
+    public double getRho (int cell) {
+        return (cell % nrho) * rhoDelta - rmax;
+    }
+
+    /*
+     * cells (n * nrho() + r) with at least minVotes votes that have no
+     * neighbor with more votes (or as many and a smaller index); by
+     * decreasing votes, then by cell
+     */
+    public int[] peaks (int minVotes) {
+        long[] keys = new long[16];
+        int npeaks = 0;
+        for (int n = 0; n < nsteps; ++n) {
+            for (int r = 0; r < nrho; ++r) {
+                int c = n * nrho + r, v = votes[c];
+                if (v < minVotes || !isPeak (n, r, v))
+                    continue;
+                if (npeaks == keys.length)
+                    keys = Arrays.copyOf (keys, 2 * npeaks);
+                keys[npeaks++] = ((long) (Integer.MAX_VALUE - v) << 32) | c;
+            }
+        }
+        Arrays.sort (keys, 0, npeaks);
+
+        int[] peaks = new int[npeaks];
+        for (int i = 0; i < npeaks; ++i)
+            peaks[i] = (int) keys[i];
+        return peaks;
+    }
+
+    boolean isPeak (int n, int r, int v) {
+        int c = n * nrho + r;
+        int m0 = Math.max (0, n - 1), m1 = Math.min (nsteps - 1, n + 1);
+        int s0 = Math.max (0, r - 1), s1 = Math.min (nrho - 1, r + 1);
+        for (int m = m0; m <= m1; ++m)
+            for (int s = s0; s <= s1; ++s) {
+                int d = m * nrho + s, u = votes[d];
+                if (u > v || (u == v && d < c))
+                    return false;
+            }
+        return true;
+    }
+
+    /*
+     * the pixels that voted for each of the cells as indices into the
+     * pixels in raster order; see getX() and getY()
+     */
+    public int[][] support (int[] cells) {
+        Support support = new Support (cells);
+        run (new AngleTask (this, support, 0, nsteps));
+        return support.pixels;
+    }
+
+    class Support {
+        final int[] cells;
+        final int[][] byAngle; // the cells of each angle
+        final int[][] pixels;
+
+        Support (int[] cells) {
+            this.cells = cells;
+            byAngle = new int[nsteps][];
+            pixels = new int[cells.length][];
+            for (int i = 0; i < cells.length; ++i) {
+                int n = cells[i] / nrho;
+                int[] a = byAngle[n];
+                byAngle[n] = a = a == null
+                    ? new int[]{i} : Arrays.copyOf (a, a.length + 1);
+                a[a.length - 1] = i;
+                pixels[i] = new int[votes[cells[i]]];
+            }
+        }
+
+        void collect (int n) {
+            if (byAngle[n] == null)
+                return;
+            int[] peak = new int[nrho], count = new int[nrho];
+            Arrays.fill (peak, -1);
+            for (int i : byAngle[n])
+                peak[cells[i] % nrho] = i;
+            for (int p = 0; p < xs.length; ++p) {
+                int r = bin (n, xs[p], ys[p]), i = peak[r];
+                if (i >= 0)
+                    pixels[i][count[r]++] = p;
+            }
+        }
+    }
+
+    public int size () { return xs.length; }
+    public int getX (int pixel) { return xs[pixel]; }
+    public int getY (int pixel) { return ys[pixel]; }
+
+    /*
+     * line segments along the peaks with at least minVotes votes, in
+     * the order of the peaks: the pixels of a peak are broken into runs
+     * of 8-neighbors in raster order and each run longer than 2 pixels
+     * is a segment unless it crosses a segment that's already found
+     */
+    public List<Line2D> segments (int minVotes) {
+        int[] peaks = peaks (minVotes);
+        int[][] support = support (peaks);
+
+        List<Line2D> segments = new ArrayList<Line2D> ();
+        Grid grid = new Grid ();
+        for (int[] pixels : support) {
+            Point start = null, p = null;
+            for (int i : pixels) {
+                Point pt = new Point (xs[i], ys[i]);
+                if (start == null) {
+                    start = pt;
+                }
+                else if (!GeomUtil.isNeighbor (pt, p)) {
+                    grid.add (segments, start, p);
+                    start = pt;
+                }
+                p = pt;
+            }
+            if (start != null)
+                grid.add (segments, start, p);
+        }
+        return segments;
+    }
+
+    /*
+     * the segments found so far bucketed by the grid cells their
+     * bounds cover, so a new segment is only tested against the
+     * segments near it
+     */
+    class Grid {
+        final int gw, gh;
+        final List<Line2D>[] cells;
+
+        @SuppressWarnings ("unchecked")
+        Grid () {
+            int size = rmax / GRID + 1;
+            gw = gh = size;
+            cells = new List[gw * gh];
+        }
+
+        void add (List<Line2D> segments, Point start, Point end) {
+            if (start.distance (end) <= 2.)
+                return;
+
+            Line2D ln = new Line2D.Float (start, end);
+            int gx0 = Math.min (start.x, end.x) / GRID;
+            int gx1 = Math.max (start.x, end.x) / GRID;
+            int gy0 = Math.min (start.y, end.y) / GRID;
+            int gy1 = Math.max (start.y, end.y) / GRID;
+            for (int gy = gy0; gy <= gy1; ++gy)
+                for (int gx = gx0; gx <= gx1; ++gx) {
+                    List<Line2D> cell = cells[gy * gw + gx];
+                    if (cell != null)
+                        for (Line2D s : cell)
+                            if (ln.intersectsLine (s))
+                                return;
+                }
+
+            segments.add (ln);
+            for (int gy = gy0; gy <= gy1; ++gy)
+                for (int gx = gx0; gx <= gx1; ++gx) {
+                    int c = gy * gw + gx;
+                    if (cells[c] == null)
+                        cells[c] = new ArrayList<Line2D> ();
+                    cells[c].add (ln);
+                }
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class IntersectionOverUnion {
     
     final List<Shape> nuclei;
     final Bitmap truth;
+    final LabelImage labels; // truth labels
+    final int[] ids; // label of each nucleus
     
     public IntersectionOverUnion (int width, int height,
                                   Collection<RLE.Run[]> runs) {
@@ -39,90 +41,414 @@ public class IntersectionOverUnion {
             rle.decode(r);
             nuclei.add(new Nucleus (r));
         }
+        labels = new LabelImage (width, height, runs);
+        ids = new int[nuclei.size()];
+        for (int i = 0; i < ids.length; ++i)
+            ids[i] = i+1;
     }
 
     public IntersectionOverUnion (Bitmap truth) {
         this.truth = truth;
-        nuclei = truth.polyConnectedComponents();
+        ConnectedComponents cc = new ConnectedComponents (truth);
+        ComponentTable table = cc.getTable();
+        nuclei = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        for (int k = 0; k < table.size(); ++k) {
+            if (table.isPolygon(k)) {
+                nuclei.add(table.getShape(k));
+                ids.add(table.label[k]);
+            }
+        }
+        this.ids = new int[ids.size()];
+        for (int i = 0; i < this.ids.length; ++i)
+            this.ids[i] = ids.get(i);
+        labels = cc.getLabelImage();
     }
 
     public Bitmap getBitmap () { return truth; }
+    public LabelImage getLabels () { return labels; }
     public Collection<RLE.Run[]> getMasks () {
-        return RLE.encode(nuclei, truth);
+        int[] map = new int[labels.size()+1];
+        for (int i = 0; i < ids.length; ++i)
+            map[ids[i]] = i+1;
+        return labels.encode(map, ids.length);
     }
 
     public double precision (Bitmap target) {
-        List<Shape> cc = target.polyConnectedComponents();
-        if (cc == null)
-            return 0.;
+        ConnectedComponents cc = new ConnectedComponents (target);
+        // average precision over all threshold values
+        return precision (new Overlap (cc));
+    }
+
+    /*
+     * same as precision (stack.threshold (t)) for each threshold t in
+     * [tmin, tmax] (indexed by t - tmin), from one sweep over the pixels
+     * in intensity order instead of a labeling per threshold; see Sweep
+     */
+    public double[] precision (ThresholdStack stack, int tmin, int tmax) {
+        if (stack.width() != truth.width()
+            || stack.height() != truth.height())
+            throw new IllegalArgumentException
+                ("Stack is "+stack.width()+"x"+stack.height()
+                 +" but truth is "+truth.width()+"x"+truth.height());
         
-        double p = 0.;
-        for (int i = 0; i < THRESHOLDS.length; ++i) {
-            p += precision (target, cc, THRESHOLDS[i]);
+        double[] precision = new double[Math.max(0, tmax - tmin + 1)];
+        // the bitmap is the pixels below t up to the threshold where the
+        //  inversion stops and the pixels above t after it, so each part
+        //  grows away from that threshold
+        int t0 = tmin;
+        while (t0 <= tmax && stack.isInverted(t0))
+            ++t0;
+        
+        Sweep sweep = new Sweep (stack);
+        for (int t = tmin, v = 0; t < t0; ++t) {
+            for (; v < t; ++v)
+                sweep.add(v);
+            precision[t - tmin] = precision(sweep.overlap());
         }
         
-        // average precision over all threshold values
+        sweep.clear();
+        for (int t = tmax, v = 255; t >= t0; --t) {
+            for (; v > t; --v)
+                sweep.add(v);
+            precision[t - tmin] = precision(sweep.overlap());
+        }
+        
+        return precision;
+    }
+
+    double precision (Overlap overlap) {
+        double p = 0.;
+        for (int i = 0; i < THRESHOLDS.length; ++i)
+            p += precision (overlap, THRESHOLDS[i]);
         return p/THRESHOLDS.length;
     }
 
-    protected double precision (Bitmap target,
-                                List<Shape> cc, double threshold) {
-        int FP = 0, TP = 0, FN = 0;
-        Set<Shape> mapped = new HashSet<>();
+    /*
+     * 8-connected components of a bitmap that only grows; the pixels
+     * are added an intensity at a time and joined to their neighbors in
+     * a union-find. The root of a component is its first pixel in
+     * raster order (the larger root is always linked to the smaller),
+     * so the roots sort the components the same way as a labeling. Each
+     * root keeps the stats the matching needs: area, bounds (for
+     * isPolygon()) and the pixels it shares with each truth label, which
+     * are merged smaller into larger.
+     */
+    class Sweep {
+        final ThresholdStack stack;
+        final int width, height, stride;
+        final Bitmap on;
+        final int[] parent, size, xmin, xmax, ymax;
+        final int[][] shared; // (label, count) pairs of each root
+        final int[] nshared; // number of pairs of each root
+        int[] touched = new int[64]; // roots that have had pairs
+        int ntouched;
+        int npolygons; // components that are polygons
+
+        Sweep (ThresholdStack stack) {
+            this.stack = stack;
+            width = stack.width();
+            height = stack.height();
+            stride = stack.wordline << 6;
+            on = new Bitmap (width, height);
+            int n = width*height;
+            parent = new int[n];
+            size = new int[n];
+            xmin = new int[n];
+            xmax = new int[n];
+            ymax = new int[n];
+            shared = new int[n][];
+            nshared = new int[n];
+        }
+
+        void clear () {
+            on.clear();
+            for (int i = 0; i < ntouched; ++i) {
+                shared[touched[i]] = null;
+                nshared[touched[i]] = 0;
+            }
+            ntouched = 0;
+            npolygons = 0;
+        }
+
+        // add the pixels of intensity v
+        void add (int v) {
+            if (v < 0 || v > 255)
+                return;
+            for (int i = stack.start[v]; i < stack.start[v+1]; ++i) {
+                int bit = stack.index[i];
+                int y = bit / stride, x = bit - y*stride;
+                add (x, y);
+            }
+        }
+
+        void add (int x, int y) {
+            int p = y*width + x;
+            on.set(x, y, true);
+            parent[p] = p;
+            size[p] = 1;
+            xmin[p] = xmax[p] = x;
+            ymax[p] = y;
+            int label = labels.get(p);
+            if (label > 0) {
+                shared[p] = new int[]{label, 1};
+                nshared[p] = 1;
+                touch (p);
+            }
+            for (int dy = -1; dy <= 1; ++dy) {
+                int yy = y + dy;
+                if (yy < 0 || yy >= height)
+                    continue;
+                for (int dx = -1; dx <= 1; ++dx) {
+                    int xx = x + dx;
+                    if (xx >= 0 && xx < width && (dx != 0 || dy != 0)
+                        && on.isOn(xx, yy))
+                        union (p, yy*width + xx);
+                }
+            }
+        }
+
+        void touch (int r) {
+            if (ntouched == touched.length)
+                touched = Arrays.copyOf(touched, 2*ntouched);
+            touched[ntouched++] = r;
+        }
+
+        int find (int p) {
+            while (parent[p] != p)
+                p = parent[p] = parent[parent[p]];
+            return p;
+        }
+
+        boolean isPolygon (int r) {
+            return xmax[r] > xmin[r] && ymax[r] > r / width;
+        }
+
+        void union (int p, int q) {
+            int r = find (p), s = find (q);
+            if (r == s)
+                return;
+            if (s < r) {
+                int t = r; r = s; s = t;
+            }
+            if (isPolygon (r)) --npolygons;
+            if (isPolygon (s)) --npolygons;
+            parent[s] = r;
+            size[r] += size[s];
+            xmin[r] = Math.min(xmin[r], xmin[s]);
+            xmax[r] = Math.max(xmax[r], xmax[s]);
+            ymax[r] = Math.max(ymax[r], ymax[s]);
+            if (isPolygon (r)) ++npolygons;
+
+            if (nshared[s] > 0) {
+                if (nshared[r] == 0)
+                    touch (r);
+                if (nshared[r] < nshared[s]) {
+                    int[] t = shared[r]; shared[r] = shared[s]; shared[s] = t;
+                    int n = nshared[r]; nshared[r] = nshared[s]; nshared[s] = n;
+                }
+                merge (r, shared[s], nshared[s]);
+                shared[s] = null;
+                nshared[s] = 0;
+            }
+        }
+
+        // add the (label, count) pairs to root r
+        void merge (int r, int[] pairs, int n) {
+            for (int i = 0; i < 2*n; i += 2) {
+                int[] rs = shared[r];
+                int j = 0, m = 2*nshared[r];
+                while (j < m && rs[j] != pairs[i])
+                    j += 2;
+                if (j < m) {
+                    rs[j+1] += pairs[i+1];
+                }
+                else {
+                    if (m == rs.length)
+                        shared[r] = rs = Arrays.copyOf(rs, 2*m);
+                    rs[m] = pairs[i];
+                    rs[m+1] = pairs[i+1];
+                    ++nshared[r];
+                }
+            }
+        }
+
+        /*
+         * the overlap of the current components; only the components
+         * that overlap the truth are listed, the other polygons are
+         * false positives
+         */
+        Overlap overlap () {
+            // live roots with pairs in raster (i.e., component) order
+            int n = 0;
+            for (int i = 0; i < ntouched; ++i) {
+                int r = touched[i];
+                if (parent[r] == r && nshared[r] > 0)
+                    touched[n++] = r;
+            }
+            ntouched = n;
+            Arrays.sort(touched, 0, n);
+
+            boolean[] valid = new boolean[n];
+            int[] comparea = new int[n];
+            int[] count = new int[labels.size()];
+            int polygons = 0;
+            for (int k = 0; k < n; ++k) {
+                int r = touched[k];
+                valid[k] = isPolygon (r);
+                if (valid[k])
+                    ++polygons;
+                comparea[k] = size[r];
+                for (int j = 0; j < 2*nshared[r]; j += 2)
+                    ++count[shared[r][j]-1];
+            }
+            
+            int[][] comps = new int[count.length][];
+            int[][] common = new int[count.length][];
+            for (int a = 0; a < count.length; ++a) {
+                if (count[a] > 0) {
+                    comps[a] = new int[count[a]];
+                    common[a] = new int[count[a]];
+                    count[a] = 0;
+                }
+            }
+            for (int k = 0; k < n; ++k) {
+                int r = touched[k];
+                for (int j = 0; j < 2*nshared[r]; j += 2) {
+                    int a = shared[r][j]-1, c = count[a]++;
+                    comps[a][c] = k;
+                    common[a][c] = shared[r][j+1];
+                }
+            }
+            
+            return new Overlap (valid, comparea, comps, common,
+                                npolygons - polygons);
+        }
+    }
+
+    /*
+     * pixel counts of the truth labels, of the target components and of
+     * every (truth, target) pair that overlaps; computed in one pass
+     * over the two label images
+     */
+    class Overlap {
+        final int ncomps; // number of target components
+        final boolean[] valid; // target components that are polygons
+        final int[] area; // area of each truth label
+        final int[] comparea; // area of each target component
+        // overlapping target components of each truth label (label-1) in
+        //  raster order and the number of pixels they share
+        final int[][] comps, shared;
+        // polygons not listed in the components (false positives)
+        final int unlisted;
+
+        Overlap (boolean[] valid, int[] comparea,
+                 int[][] comps, int[][] shared, int unlisted) {
+            ncomps = valid.length;
+            this.valid = valid;
+            this.comparea = comparea;
+            this.comps = comps;
+            this.shared = shared;
+            this.unlisted = unlisted;
+            area = labels.getAreas();
+        }
+
+        Overlap (ConnectedComponents cc) {
+            ComponentTable table = cc.getTable();
+            LabelImage target = cc.getLabelImage();
+            ncomps = table.size();
+            valid = new boolean[ncomps];
+            for (int k = 0; k < ncomps; ++k)
+                valid[k] = table.isPolygon(k);
+            comparea = table.count;
+            area = labels.getAreas();
+            unlisted = 0;
+
+            // pairs are counted in a map keyed by truth<<32|target; most
+            //  pixels have the same pair as the previous pixel
+            Map<Long, int[]> pairs = new HashMap<>();
+            long last = -1;
+            int count = 0;
+            for (int i = 0, n = truth.width()*truth.height(); i <= n; ++i) {
+                long key = -1;
+                if (i < n) {
+                    int a = labels.get(i), b = target.get(i);
+                    if (a > 0 && b > 0)
+                        key = ((long)a << 32) | (b - 1);
+                }
+                if (key != last) {
+                    if (last >= 0) {
+                        int[] c = pairs.get(last);
+                        if (c == null)
+                            pairs.put(last, c = new int[1]);
+                        c[0] += count;
+                    }
+                    last = key;
+                    count = 0;
+                }
+                ++count;
+            }
+
+            Long[] keys = pairs.keySet().toArray(new Long[0]);
+            Arrays.sort(keys);
+            comps = new int[labels.size()][];
+            shared = new int[labels.size()][];
+            for (int i = 0; i < keys.length; ) {
+                int a = (int)(keys[i] >>> 32), j = i;
+                while (j < keys.length && (int)(keys[j] >>> 32) == a)
+                    ++j;
+                comps[a-1] = new int[j-i];
+                shared[a-1] = new int[j-i];
+                for (int k = i; k < j; ++k) {
+                    comps[a-1][k-i] = (int)(keys[k] & 0xffffffffl);
+                    shared[a-1][k-i] = pairs.get(keys[k])[0];
+                }
+                i = j;
+            }
+        }
+    }
+
+    /*
+     * each nucleus is greedily matched to the unmatched target component
+     * with the largest intersection over union; a match below the
+     * threshold is neither a true positive nor a false negative
+     */
+    protected double precision (Overlap overlap, double threshold) {
+        int FP = overlap.unlisted, TP = 0, FN = 0;
+        boolean[] mapped = new boolean[overlap.ncomps];
         
-        for (Shape n : nuclei) {
-            Rectangle rs = n.getBounds();
+        for (int i = 0; i < ids.length; ++i) {
+            int a = ids[i];
+            int[] comps = overlap.comps[a-1], shared = overlap.shared[a-1];
             
-            Shape matched = null;
+            int matched = -1;
             double maxiou = 0.;
-            for (Shape c : cc) {
-                if (!mapped.contains(c) && // force a one-to-one mapping?
-                    n.intersects(c.getBounds2D())) {
-                    Rectangle rc = c.getBounds();
-                    int x0 = Math.min(rs.x, rc.x);
-                    int x1 = x0 + Math.max(rs.width, rc.width);
-                    int y0 = Math.min(rs.y, rc.y);
-                    int y1 = y0 + Math.max(rs.height, rc.height);
-                    int ab = 0, a = 0, b = 0;
-                    for (; x0 < x1; ++x0) {
-                        for (int y = y0; y < y1; ++y) {
-                            boolean inS = truth.isOn(x0, y);
-                            boolean inC = target.isOn(x0, y);
-                            if (inS && inC) {
-                                ++ab;
-                            }
-                            else if (inS) {
-                                ++a;
-                            }
-                            else if (inC) {
-                                ++b;
-                            }
-                        }
-                    }
-                    
-                    if (ab > 0) {
-                        double iou = (double)ab/(ab+a+b);
-                        if (matched == null || iou > maxiou) {
-                            matched = c;
-                            maxiou = iou;
-                        }
+            for (int j = 0; comps != null && j < comps.length; ++j) {
+                int c = comps[j];
+                if (overlap.valid[c] && !mapped[c]) {
+                    int ab = shared[j];
+                    double iou = (double)ab
+                        /(overlap.area[a-1] + overlap.comparea[c] - ab);
+                    if (matched < 0 || iou > maxiou) {
+                        matched = c;
+                        maxiou = iou;
                     }
                 }
             }
             
-            if (matched != null) {
+            if (matched >= 0) {
                 if (maxiou >= threshold)
                     ++TP; // true positive
-                mapped.add(matched);
+                mapped[matched] = true;
             }
             else {
                 ++FN; // false negative
             }
         }
 
-        // now for all connected components in cc that aren't mapped
-        for (Shape c : cc) {
-            if (!mapped.contains(c))
+        // now for all connected components that aren't mapped
+        for (int c = 0; c < overlap.ncomps; ++c) {
+            if (overlap.valid[c] && !mapped[c])
                 ++FP;
         }
         
@@ -0,0 +1,218 @@
+package tripod.colony;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import java.awt.Rectangle;
+
+/**
+ * Row-major image of component labels; 0 is the background and the
+ * labels of the components are 1..size(). The labels are stored in an
+ * IntBuffer that is either backed by an int[] or allocated off-heap.
+ * Per-label bounds and areas are computed in one pass on first use.
+ */
+public class LabelImage {
+    final int width, height, nlabels;
+    final IntBuffer labels;
+
+    // [x0, y0, x1, y1) of each label (label-1) and its number of pixels
+    private int[] bounds, areas;
+
+    public LabelImage (int width, int height, int nlabels) {
+        this (width, height, nlabels, false);
+    }
+
+    public LabelImage (int width, int height, int nlabels, boolean direct) {
+        if (width < 0 || height < 0 || nlabels < 0)
+            throw new IllegalArgumentException
+                ("Invalid label image "+width+"x"+height+" ("+nlabels+")");
+        this.width = width;
+        this.height = height;
+        this.nlabels = nlabels;
+        labels = direct ? ByteBuffer.allocateDirect (4 * width * height)
+            .order (ByteOrder.nativeOrder ()).asIntBuffer ()
+            : IntBuffer.wrap (new int[width * height]);
+    }
+
+    /*
+     * label the pixels of mask i with i+1; the pixels of each run are
+     * the same pixels RLE.decode() sets
+     */
+    public LabelImage (int width, int height, Collection<RLE.Run[]> masks) {
+        this (width, height, masks.size ());
+        int label = 0;
+        for (RLE.Run[] runs : masks) {
+            ++label;
+            for (RLE.Run r : runs) {
+                int x = (r.index - 1) / height, y = (r.index - 1) % height;
+                int n = r.len > 1 ? r.len - 1 : 1;
+                for (int i = 0; i < n; ++i, ++y)
+                    labels.put (y * width + x, label);
+            }
+        }
+    }
+
+    /*
+     * set the pixels [x0, x1) of row y to label
+     */
+    void fill (int y, int x0, int x1, int label) {
+        int off = y * width;
+        if (labels.hasArray ()) {
+            Arrays.fill (labels.array (), off + x0, off + x1, label);
+        }
+        else {
+            for (int i = off + x0; i < off + x1; ++i)
+                labels.put (i, label);
+        }
+    }
+
+    public int width () { return width; }
+    public int height () { return height; }
+    public int size () { return nlabels; }
+    public boolean isDirect () { return labels.isDirect (); }
+
+    public int get (int x, int y) { return labels.get (y * width + x); }
+    public int get (int index) { return labels.get (index); }
+
+    /*
+     * read-only view of the labels
+     */
+    public IntBuffer getBuffer () { return labels.asReadOnlyBuffer (); }
+
+    synchronized void stats () {
+        if (areas != null)
+            return;
+
+        int[] bounds = new int[4 * nlabels];
+        for (int k = 0; k < nlabels; ++k) {
+            bounds[4 * k] = bounds[4 * k + 1] = Integer.MAX_VALUE;
+        }
+        int[] areas = new int[nlabels];
+        for (int y = 0, i = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x, ++i) {
+                int l = labels.get (i);
+                if (l > 0) {
+                    int k = 4 * (l - 1);
+                    if (x < bounds[k]) bounds[k] = x;
+                    if (y < bounds[k + 1]) bounds[k + 1] = y;
+                    if (x >= bounds[k + 2]) bounds[k + 2] = x + 1;
+                    bounds[k + 3] = y + 1;
+                    ++areas[l - 1];
+                }
+            }
+        }
+        this.bounds = bounds;
+        this.areas = areas;
+    }
+
+    /*
+     * number of pixels of each label; area[label-1]
+     */
+    public int[] getAreas () {
+        stats ();
+        return areas.clone ();
+    }
+
+    public int getArea (int label) {
+        stats ();
+        return areas[label - 1];
+    }
+
+    /*
+     * bounding box of label or null if it has no pixels
+     */
+    public Rectangle getBounds (int label) {
+        stats ();
+        int k = 4 * (label - 1);
+        if (areas[label - 1] == 0)
+            return null;
+        return new Rectangle (bounds[k], bounds[k + 1],
+                              bounds[k + 2] - bounds[k],
+                              bounds[k + 3] - bounds[k + 1]);
+    }
+
+    /*
+     * raster indices (y*width+x) of the pixels of label in raster order
+     */
+    public int[] getPixels (int label) {
+        Rectangle r = getBounds (label);
+        if (r == null)
+            return new int[0];
+
+        int[] pixels = new int[getArea (label)];
+        int n = 0;
+        for (int y = r.y; y < r.y + r.height; ++y) {
+            for (int i = y * width + r.x, i1 = i + r.width; i < i1; ++i)
+                if (labels.get (i) == label)
+                    pixels[n++] = i;
+        }
+        return pixels;
+    }
+
+    /*
+     * the pixels of label as a bitmap the size of its bounding box or
+     * null if it has no pixels
+     */
+    public Bitmap getBitmap (int label) {
+        Rectangle r = getBounds (label);
+        if (r == null)
+            return null;
+
+        Bitmap bitmap = new Bitmap (r.width, r.height);
+        for (int y = 0; y < r.height; ++y) {
+            int off = (r.y + y) * width + r.x;
+            for (int x = 0; x < r.width; ++x)
+                if (labels.get (off + x) == label)
+                    bitmap.set (x, y, true);
+        }
+        return bitmap;
+    }
+
+    /*
+     * run-length masks (see RLE) of all labels with at least one pixel,
+     * in label order
+     */
+    public List<RLE.Run[]> encode () {
+        int[] map = new int[nlabels + 1];
+        for (int l = 0; l <= nlabels; ++l)
+            map[l] = l;
+        return encode (map, nlabels);
+    }
+
+    /*
+     * same as encode() but the pixels of label l belong to mask map[l]
+     * (1..nmasks) or to no mask if map[l] is 0; the image is scanned
+     * once in the column-major order of the runs
+     */
+    public List<RLE.Run[]> encode (int[] map, int nmasks) {
+        List<List<RLE.Run>> masks = new ArrayList<List<RLE.Run>> ();
+        for (int m = 0; m < nmasks; ++m)
+            masks.add (new ArrayList<RLE.Run> ());
+
+        for (int x = 0; x < width; ++x) {
+            int run = 0, start = 0;
+            for (int y = 0; y <= height; ++y) {
+                int m = y < height ? map[labels.get (y * width + x)] : 0;
+                if (m != run) {
+                    if (run > 0)
+                        masks.get (run - 1).add
+                            (new RLE.Run (height, x * height + start + 1,
+                                          y - start));
+                    run = m;
+                    start = y;
+                }
+            }
+        }
+
+        List<RLE.Run[]> runs = new ArrayList<RLE.Run[]> ();
+        for (List<RLE.Run> m : masks)
+            if (!m.isEmpty ())
+                runs.add (m.toArray (new RLE.Run[0]));
+        return runs;
+    }
+}
@@ -0,0 +1,555 @@
+package tripod.colony;
+
+import java.io.File;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.BufferedOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+/**
+ * A bitmap stored in a file and accessed through memory mapping, for
+ * masks that are too large for the heap (a 100k x 100k mask is 1.25
+ * GB). The pixels are packed as in Bitmap: rows start on a 64-bit word
+ * boundary and the leftmost pixel of a word is its most significant
+ * bit; the words are big-endian, so each row is also the packed byte
+ * layout of MultiPixelPackedSampleModel. The file is a 16 byte header
+ * (magic, width, height, reserved) followed by the rows.
+ *
+ * The file is mapped in chunks of whole rows (a MappedByteBuffer is
+ * limited to 2 GB) and offsets are longs; pages are only read when
+ * they are touched. Nothing but a row or a band of rows is ever copied to the
+ * heap: thresholding, component labeling and RLE export stream over
+ * the rows, and band() and setBand() move a range of rows to and from
+ * a Bitmap for everything else.
+ */
+public class MappedBitmap implements Closeable {
+    static final int MAGIC = 0x424d4150; // BMAP
+    static final int HEADER = 16;
+    static final long CHUNK = 1l << 30; // bytes per mapping (at most)
+
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final boolean writable;
+    final int width, height, wordline;
+    final long rowbytes;
+    final int chunkrows; // rows per mapping
+    final MappedByteBuffer[] chunks;
+
+    MappedBitmap (File file, boolean writable, boolean create,
+                  int width, int height) throws IOException {
+        if (create && (width < 0 || height < 0)) {
+            throw new IllegalArgumentException
+                ("Invalid bitmap size: " + width + "x" + height);
+        }
+        this.file = file;
+        this.writable = writable;
+        raf = new RandomAccessFile (file, writable ? "rw" : "r");
+        channel = raf.getChannel ();
+        try {
+            ByteBuffer header = ByteBuffer.allocate (HEADER);
+            if (create) {
+                header.putInt (MAGIC).putInt (width).putInt (height);
+                header.flip ();
+                channel.truncate (0);
+                channel.write (header, 0);
+            }
+            else {
+                channel.read (header, 0);
+                header.flip ();
+                if (header.remaining () < HEADER
+                    || header.getInt () != MAGIC) {
+                    throw new IOException
+                        (file + ": not a mapped bitmap");
+                }
+                width = header.getInt ();
+                height = header.getInt ();
+            }
+
+            this.width = width;
+            this.height = height;
+            wordline = (width + 63) >> 6;
+            rowbytes = 8l * wordline;
+            chunkrows = (int) Math.max
+                (1, Math.min (height, CHUNK / Math.max (1, rowbytes)));
+            chunks = new MappedByteBuffer
+                [height == 0 ? 0 : (height + chunkrows - 1) / chunkrows];
+
+            long size = HEADER + rowbytes * height;
+            if (create)
+                raf.setLength (size); // zero filled
+            else if (channel.size () < size)
+                throw new IOException (file + ": truncated mapped bitmap");
+
+            // mapping doesn't read anything; pages are only loaded when
+            //  they're touched
+            FileChannel.MapMode mode = writable
+                ? FileChannel.MapMode.READ_WRITE
+                : FileChannel.MapMode.READ_ONLY;
+            for (int c = 0; c < chunks.length; ++c) {
+                long y0 = (long) c * chunkrows;
+                long rows = Math.min (chunkrows, height - y0);
+                chunks[c] = channel.map
+                    (mode, HEADER + y0 * rowbytes, rows * rowbytes);
+            }
+        }
+        catch (IOException ex) {
+            raf.close ();
+            throw ex;
+        }
+    }
+
+    /*
+     * create a new (empty) file backed bitmap; an existing file is
+     * overwritten
+     */
+    public static MappedBitmap create (File file, int width, int height)
+        throws IOException {
+        return new MappedBitmap (file, true, true, width, height);
+    }
+
+    /*
+     * write the bitmap to a new file backed bitmap
+     */
+    public static MappedBitmap create (File file, Bitmap bitmap)
+        throws IOException {
+        MappedBitmap mb = create (file, bitmap.width (), bitmap.height ());
+        mb.setBand (0, bitmap);
+        return mb;
+    }
+
+    public static MappedBitmap open (File file) throws IOException {
+        return open (file, false);
+    }
+
+    /*
+     * open an existing file; nothing is read until the pixels are
+     * accessed
+     */
+    public static MappedBitmap open (File file, boolean writable)
+        throws IOException {
+        return new MappedBitmap (file, writable, false, 0, 0);
+    }
+
+    public File getFile () { return file; }
+    public int width () { return width; }
+    public int height () { return height; }
+    public int wordline () { return wordline; }
+
+    /*
+     * word k of row y
+     */
+    public long word (int y, int k) {
+        return chunks[y / chunkrows].getLong
+            ((int) ((y % chunkrows) * rowbytes) + (k << 3));
+    }
+
+    public void setWord (int y, int k, long w) {
+        chunks[y / chunkrows].putLong
+            ((int) ((y % chunkrows) * rowbytes) + (k << 3), w);
+    }
+
+    public boolean get (int x, int y) {
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            return isOn (x, y);
+        }
+        return false;
+    }
+
+    public boolean isOn (int x, int y) {
+        return (word (y, x >> 6) & (Long.MIN_VALUE >>> x)) != 0;
+    }
+
+    public void set (int x, int y, boolean on) {
+        long w = word (y, x >> 6);
+        setWord (y, x >> 6, on ? w | (Long.MIN_VALUE >>> x)
+                 : w & ~(Long.MIN_VALUE >>> x));
+    }
+
+    /*
+     * copy the words of row y to row[off..off+wordline())
+     */
+    public void readRow (int y, long[] row, int off) {
+        MappedByteBuffer buf = chunks[y / chunkrows];
+        int pos = (int) ((y % chunkrows) * rowbytes);
+        for (int k = 0; k < wordline; ++k, pos += 8)
+            row[off + k] = buf.getLong (pos);
+    }
+
+    /*
+     * write row[off..off+wordline()) to row y; the bits past width
+     * must be clear
+     */
+    public void writeRow (int y, long[] row, int off) {
+        MappedByteBuffer buf = chunks[y / chunkrows];
+        int pos = (int) ((y % chunkrows) * rowbytes);
+        for (int k = 0; k < wordline; ++k, pos += 8)
+            buf.putLong (pos, row[off + k]);
+    }
+
+    /*
+     * rows [y0, y1) as a Bitmap on the heap
+     */
+    public Bitmap band (int y0, int y1) {
+        if (y0 < 0 || y1 > height || y0 > y1) {
+            throw new IllegalArgumentException
+                ("Invalid rows: " + y0 + ".." + y1);
+        }
+        Bitmap b = new Bitmap (width, y1 - y0);
+        for (int y = y0; y < y1; ++y)
+            readRow (y, b.words, (y - y0) * wordline);
+        return b;
+    }
+
+    /*
+     * overwrite the rows starting at y0 with the rows of the bitmap,
+     * which must have the same width
+     */
+    public void setBand (int y0, Bitmap band) {
+        if (band.width () != width) {
+            throw new IllegalArgumentException
+                ("Band width " + band.width () + " != " + width);
+        }
+        if (y0 < 0 || y0 + band.height () > height) {
+            throw new IllegalArgumentException
+                ("Band rows " + y0 + ".." + (y0 + band.height ())
+                 + " are out of bounds");
+        }
+        for (int y = 0; y < band.height (); ++y)
+            writeRow (y0 + y, band.words, y * wordline);
+    }
+
+    public long area () {
+        long area = 0l;
+        for (int y = 0; y < height; ++y)
+            for (int k = 0; k < wordline; ++k)
+                area += Long.bitCount (word (y, k));
+        return area;
+    }
+
+    /*
+     * write the mapped rows back to the file
+     */
+    public void flush () {
+        if (writable)
+            for (MappedByteBuffer buf : chunks)
+                if (buf != null)
+                    buf.force ();
+    }
+
+    /*
+     * the mappings stay valid until they are garbage collected
+     */
+    public void close () throws IOException {
+        flush ();
+        raf.close ();
+    }
+
+    /*
+     * threshold the first band of the image into a new file backed
+     * bitmap; a pixel is on if it's less than threshold (inverted) or
+     * greater than threshold, as in Util.threshold(). The image is read
+     * one row of tiles at a time.
+     */
+    public static MappedBitmap threshold (File file, RenderedImage image,
+                                          int threshold, boolean inverted)
+        throws IOException {
+        int width = image.getWidth (), height = image.getHeight ();
+        int x0 = image.getMinX (), y0 = image.getMinY ();
+        MappedBitmap mb = create (file, width, height);
+
+        int band = Math.max (1, Math.min (height, image.getTileHeight ()));
+        int[] samples = new int[width];
+        long[] row = new long[mb.wordline];
+        for (int y = 0; y < height; y += band) {
+            int h = Math.min (band, height - y);
+            Raster raster = image.getData
+                (new Rectangle (x0, y0 + y, width, h));
+            for (int j = 0; j < h; ++j) {
+                raster.getSamples (x0, y0 + y + j, width, 1, 0, samples);
+                for (int k = 0, x = 0; k < mb.wordline; ++k) {
+                    long w = 0l;
+                    for (int b = 0; b < 64 && x < width; ++b, ++x) {
+                        int p = samples[x];
+                        if (inverted ? p < threshold : p > threshold)
+                            w |= Long.MIN_VALUE >>> b;
+                    }
+                    row[k] = w;
+                }
+                mb.writeRow (y + j, row, 0);
+            }
+        }
+        return mb;
+    }
+
+    /*
+     * the runs of a row as pairs [xs[2i], xs[2i+1])
+     */
+    static class Runs {
+        int n;
+        int[] xs = new int[64];
+
+        Runs scan (long[] row, int wordline) {
+            n = 0;
+            int start = -1;
+            for (int k = 0; k < wordline; ++k) {
+                long w = row[k];
+                // find the next 1 bit outside a run, the next 0 bit in
+                //  a run
+                for (int b = 0; b < 64; ) {
+                    long v = start < 0 ? w << b : ~w << b;
+                    if (v == 0)
+                        break;
+                    b += Long.numberOfLeadingZeros (v);
+                    int x = (k << 6) + b;
+                    if (start < 0) {
+                        start = x;
+                    }
+                    else {
+                        add (start, x);
+                        start = -1;
+                    }
+                }
+            }
+            if (start >= 0) // padding bits are clear, so x1 is the width
+                add (start, wordline << 6);
+            return this;
+        }
+
+        void add (int x0, int x1) {
+            if (2 * n + 2 > xs.length)
+                xs = Arrays.copyOf (xs, 2 * xs.length);
+            xs[2 * n] = x0;
+            xs[2 * n + 1] = x1;
+            ++n;
+        }
+    }
+
+    /**
+     * Features of the 8-connected components of a MappedBitmap; these
+     * are computed in one pass over the rows. Components are numbered
+     * in raster order of their first pixel as in ConnectedComponents.
+     */
+    public static class Components {
+        public final int size;
+        public final long[] count; // number of pixels
+        public final int[] xmin, ymin, xmax, ymax; // inclusive bounds
+        public final double[] cx, cy; // centroid
+
+        Components (int size) {
+            this.size = size;
+            count = new long[size];
+            xmin = new int[size];
+            ymin = new int[size];
+            xmax = new int[size];
+            ymax = new int[size];
+            cx = new double[size];
+            cy = new double[size];
+        }
+
+        public int size () { return size; }
+    }
+
+    /*
+     * label the components row by row; only the runs of the previous
+     * row and the features of the provisional labels are kept, so
+     * memory scales with the number of components, not the pixels
+     */
+    public Components components () {
+        Labels lab = new Labels ();
+        long[] row = new long[wordline];
+        Runs prev = new Runs (), cur = new Runs ();
+        int[] prevLabel = new int[0], curLabel = new int[32];
+        for (int y = 0; y < height; ++y) {
+            readRow (y, row, 0);
+            cur.scan (row, wordline);
+            if (curLabel.length < cur.n)
+                curLabel = new int[cur.xs.length / 2];
+
+            int[] xs = cur.xs, ps = prev.xs;
+            for (int r = 0, q = 0; r < cur.n; ++r) {
+                int x0 = xs[2 * r], x1 = xs[2 * r + 1];
+                // runs of the previous row that end before this one
+                //  starts (less the diagonal) can't touch later runs
+                while (q < prev.n && ps[2 * q + 1] < x0)
+                    ++q;
+                int label = -1;
+                for (int p = q; p < prev.n && ps[2 * p] <= x1; ++p) {
+                    int l = prevLabel[p];
+                    label = label < 0 ? lab.find (l) : lab.union (label, l);
+                }
+                if (label < 0)
+                    label = lab.add ();
+                lab.add (label, x0, x1, y);
+                curLabel[r] = label;
+            }
+
+            Runs t = prev;
+            prev = cur;
+            cur = t;
+            int[] tl = prevLabel;
+            prevLabel = curLabel;
+            curLabel = tl;
+        }
+        return lab.components ();
+    }
+
+    /*
+     * union-find over provisional labels with their features; the
+     * features of a label are merged into its root
+     */
+    static class Labels {
+        int size;
+        int[] parent = new int[64];
+        long[] count = new long[64], sx = new long[64], sy = new long[64];
+        int[] xmin = new int[64], ymin = new int[64];
+        int[] xmax = new int[64], ymax = new int[64];
+
+        int add () {
+            if (size == parent.length) {
+                int n = 2 * size;
+                parent = Arrays.copyOf (parent, n);
+                count = Arrays.copyOf (count, n);
+                sx = Arrays.copyOf (sx, n);
+                sy = Arrays.copyOf (sy, n);
+                xmin = Arrays.copyOf (xmin, n);
+                ymin = Arrays.copyOf (ymin, n);
+                xmax = Arrays.copyOf (xmax, n);
+                ymax = Arrays.copyOf (ymax, n);
+            }
+            int l = size++;
+            parent[l] = l;
+            xmin[l] = ymin[l] = Integer.MAX_VALUE;
+            xmax[l] = ymax[l] = -1;
+            return l;
+        }
+
+        // add the run [x0, x1) of row y to root l
+        void add (int l, int x0, int x1, int y) {
+            long n = x1 - x0;
+            count[l] += n;
+            sx[l] += n * (x0 + x1 - 1) / 2; // n * (x0 + x1 - 1) is even
+            sy[l] += n * y;
+            if (x0 < xmin[l]) xmin[l] = x0;
+            if (x1 - 1 > xmax[l]) xmax[l] = x1 - 1;
+            if (y < ymin[l]) ymin[l] = y;
+            if (y > ymax[l]) ymax[l] = y;
+        }
+
+        int find (int l) {
+            return ConnectedComponents.find (parent, l);
+        }
+
+        // link the larger root to the smaller; returns the root
+        int union (int a, int b) {
+            a = find (a);
+            b = find (b);
+            if (a == b)
+                return a;
+            if (b < a) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            parent[b] = a;
+            count[a] += count[b];
+            sx[a] += sx[b];
+            sy[a] += sy[b];
+            xmin[a] = Math.min (xmin[a], xmin[b]);
+            ymin[a] = Math.min (ymin[a], ymin[b]);
+            xmax[a] = Math.max (xmax[a], xmax[b]);
+            ymax[a] = Math.max (ymax[a], ymax[b]);
+            return a;
+        }
+
+        // roots in label order are the components in raster order
+        Components components () {
+            int n = 0;
+            for (int l = 0; l < size; ++l)
+                if (parent[l] == l)
+                    ++n;
+            Components c = new Components (n);
+            for (int l = 0, k = 0; l < size; ++l) {
+                if (parent[l] != l)
+                    continue;
+                c.count[k] = count[l];
+                c.xmin[k] = xmin[l];
+                c.ymin[k] = ymin[l];
+                c.xmax[k] = xmax[l];
+                c.ymax[k] = ymax[l];
+                c.cx[k] = (double) sx[l] / count[l];
+                c.cy[k] = (double) sy[l] / count[l];
+                ++k;
+            }
+            return c;
+        }
+    }
+
+    /*
+     * write the mask as a single line of run-length pairs in the format
+     * of RLE ("name,index len index len ..."; pixels are numbered from
+     * 1 top to bottom, then left to right). Indices are longs, so the
+     * mask can have more than 2^31 pixels. The columns are read 64 at a
+     * time, one word per row.
+     */
+    public void encode (String name, OutputStream os) {
+        PrintStream ps = new PrintStream (new BufferedOutputStream (os));
+        ps.print (name + ",");
+        boolean first = true;
+
+        int[] start = new int[64];
+        int[][] runs = new int[64][]; // (y0, len) pairs per column
+        int[] nruns = new int[64];
+        for (int k = 0; k < wordline; ++k) {
+            Arrays.fill (start, -1);
+            Arrays.fill (nruns, 0);
+            long prev = 0l;
+            for (int y = 0; y <= height; ++y) {
+                long w = y < height ? word (y, k) : 0l;
+                for (long t = w ^ prev; t != 0; ) {
+                    int b = Long.numberOfLeadingZeros (t);
+                    t &= ~(Long.MIN_VALUE >>> b);
+                    if (start[b] < 0) {
+                        start[b] = y;
+                    }
+                    else {
+                        int[] r = runs[b];
+                        if (r == null)
+                            runs[b] = r = new int[16];
+                        else if (2 * nruns[b] + 2 > r.length)
+                            runs[b] = r = Arrays.copyOf (r, 2 * r.length);
+                        r[2 * nruns[b]] = start[b];
+                        r[2 * nruns[b] + 1] = y - start[b];
+                        ++nruns[b];
+                        start[b] = -1;
+                    }
+                }
+                prev = w;
+            }
+
+            for (int b = 0; b < 64; ++b) {
+                long col = (long) ((k << 6) + b) * height + 1;
+                for (int i = 0; i < nruns[b]; ++i) {
+                    if (!first)
+                        ps.print (' ');
+                    ps.print (col + runs[b][2 * i]);
+                    ps.print (' ');
+                    ps.print (runs[b][2 * i + 1]);
+                    first = false;
+                }
+            }
+        }
+        ps.println ();
+        ps.flush ();
+    }
+}
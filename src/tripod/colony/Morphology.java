@@ -0,0 +1,212 @@
+package tripod.colony;
+
+import java.util.Arrays;
+
+/**
+ * Binary erosion and dilation of a Bitmap, 64 pixels at a time. A
+ * structuring element is a union of rectangles. Each rectangle is
+ * separable, so it is applied as a horizontal line and then a
+ * vertical line:
+ *
+ *   dilation: out(x,y) = OR  of in(x-dx, y-dy) over (dx,dy) in the element
+ *   erosion:  out(x,y) = AND of in(x+dx, y+dy) over (dx,dy) in the element
+ *
+ * A horizontal line of length L takes log2(L) passes of shifted word
+ * ORs (ANDs) over each row. A vertical line uses the van Herk/Gil-Werman
+ * block prefix and suffix, so it costs three word ops per row whatever
+ * its length. Pixels outside the bitmap are off for dilation and on for
+ * erosion, so a foreground region touching the border isn't eroded
+ * from that side.
+ */
+final class Morphology {
+    final boolean erode;
+    final long fill; // value of the pixels outside the bitmap
+    final int width, height, wordline;
+    long[] pre, suf; // van Herk/Gil-Werman buffers
+
+    Morphology (Bitmap src, boolean erode) {
+        this.erode = erode;
+        fill = erode ? -1l : 0l;
+        width = src.width ();
+        height = src.height ();
+        wordline = src.wordline ();
+    }
+
+    static Bitmap dilate (Bitmap src, StructuringElement se) {
+        return new Morphology (src, false).apply (src, se);
+    }
+
+    static Bitmap erode (Bitmap src, StructuringElement se) {
+        return new Morphology (src, true).apply (src, se);
+    }
+
+    Bitmap apply (Bitmap src, StructuringElement se) {
+        // visit the rectangles sorted by their x range so that rectangles
+        //  with the same horizontal line (e.g., the upper and lower half of
+        //  a disk) share a single horizontal pass
+        int n = se.rects.length / 4;
+        long[] order = new long[n];
+        for (int i = 0; i < n; ++i) {
+            int x0 = se.rects[4 * i], x1 = se.rects[4 * i + 2];
+            order[i] = ((long) (x0 + 0x8000) << 48)
+                | ((long) (x1 + 0x8000) << 32) | i;
+        }
+        Arrays.sort (order);
+
+        Bitmap dst = new Bitmap (width, height), line = null;
+        int lastx0 = 0, lastx1 = -1;
+        for (int k = 0; k < n; ++k) {
+            int i = 4 * (int) order[k];
+            int x0 = se.rects[i], y0 = se.rects[i + 1];
+            int x1 = se.rects[i + 2], y1 = se.rects[i + 3];
+            if (line == null || x0 != lastx0 || x1 != lastx1) {
+                line = erode ? horizontal (src, -x1, -x0)
+                    : horizontal (src, x0, x1);
+                lastx0 = x0;
+                lastx1 = x1;
+            }
+
+            // the first rectangle is stored, the others are combined
+            if (erode)
+                vertical (line, -y1, -y0, dst, k == 0);
+            else
+                vertical (line, y0, y1, dst, k == 0);
+        }
+
+        // erosion turns on the padding bits
+        long tail = dst.tailMask ();
+        for (int j = wordline - 1; wordline > 0 && j < dst.words.length;
+             j += wordline)
+            dst.words[j] &= tail;
+        return dst;
+    }
+
+    long op (long a, long b) {
+        return erode ? a & b : a | b;
+    }
+
+    /*
+     * out(x) = op of in(x-e) for e in [lo, hi] along each row
+     */
+    Bitmap horizontal (Bitmap src, int lo, int hi) {
+        int len = hi - lo + 1;
+        Bitmap dst = new Bitmap (width, height);
+        if (len == 1 && hi == 0) {
+            System.arraycopy (src.words, 0, dst.words, 0, src.words.length);
+            return dst;
+        }
+
+        // the row with pad words of fill on either side; pad covers the
+        //  largest shift
+        int pad = (Math.max (Math.abs (lo), Math.abs (hi)) + 63) / 64 + 1;
+        long[] buf = new long[wordline + 2 * pad];
+        long notail = ~src.tailMask ();
+        for (int y = 0; y < height; ++y) {
+            int row = y * wordline;
+            Arrays.fill (buf, fill);
+            System.arraycopy (src.words, row, buf, pad, wordline);
+            if (erode)
+                buf[pad + wordline - 1] |= notail;
+            else
+                buf[pad + wordline - 1] &= ~notail;
+
+            // buf(x) = op of buf(x+d) for d in [0, len) by doubling
+            for (int w = 1; w < len; ) {
+                int s = Math.min (w, len - w);
+                for (int i = 0; i < buf.length; ++i) {
+                    buf[i] = op (buf[i], shifted (buf, i, s, fill));
+                }
+                w += s;
+            }
+
+            // out(x) = buf(x - hi)
+            for (int k = 0; k < wordline; ++k)
+                dst.words[row + k] = shifted (buf, k, 64 * pad - hi, fill);
+        }
+        return dst;
+    }
+
+    /*
+     * the 64 bits of buf starting at bit 64*i + s (s >= 0); bits past
+     * the end of buf are fill
+     */
+    static long shifted (long[] buf, int i, int s, long fill) {
+        int j = i + (s >> 6), b = s & 63;
+        long hi = j < buf.length ? buf[j] : fill;
+        if (b == 0)
+            return hi;
+        long lo = j + 1 < buf.length ? buf[j + 1] : fill;
+        return (hi << b) | (lo >>> (64 - b));
+    }
+
+    /*
+     * out(y) = op of in(y-e) for e in [lo, hi] along each column; out
+     * is stored in dst if first is true, otherwise it's combined with
+     * dst
+     */
+    void vertical (Bitmap src, int lo, int hi, Bitmap dst, boolean first) {
+        int len = hi - lo + 1;
+        long[] out = dst.words;
+        if (len == 1) {
+            // a shifted copy of the rows
+            for (int y = 0; y < height; ++y) {
+                int sy = y - lo, row = y * wordline;
+                for (int k = 0; k < wordline; ++k) {
+                    long v = sy >= 0 && sy < height
+                        ? src.words[sy * wordline + k] : fill;
+                    out[row + k] = first ? v : op (out[row + k], v);
+                }
+            }
+            return;
+        }
+
+        // ext(i) = in(i - hi) for i in [0, n); rows outside are fill.
+        //  Within each block of len rows, pre(i) is the op of the rows
+        //  from the start of the block up to i and suf(i) from i to the
+        //  end of the block, so that the window [i, i+len) is
+        //  suf(i) op pre(i+len-1).
+        int n = height + len - 1;
+        if (pre == null || pre.length < n * wordline) {
+            pre = new long[n * wordline];
+            suf = new long[n * wordline];
+        }
+        for (int b = 0; b < n; b += len) {
+            int e = Math.min (n, b + len);
+            for (int i = b; i < e; ++i) {
+                int row = i * wordline;
+                row (src, i - hi, pre, row);
+                if (i > b) {
+                    for (int k = 0; k < wordline; ++k)
+                        pre[row + k] = op (pre[row + k],
+                                           pre[row - wordline + k]);
+                }
+            }
+            for (int i = e - 1; i >= b; --i) {
+                int row = i * wordline;
+                row (src, i - hi, suf, row);
+                if (i < e - 1) {
+                    for (int k = 0; k < wordline; ++k)
+                        suf[row + k] = op (suf[row + k],
+                                           suf[row + wordline + k]);
+                }
+            }
+        }
+
+        // out(y) = window starting at ext index y
+        for (int y = 0; y < height; ++y) {
+            int s = y * wordline, p = (y + len - 1) * wordline;
+            for (int k = 0; k < wordline; ++k) {
+                long v = op (suf[s + k], pre[p + k]);
+                out[s + k] = first ? v : op (out[s + k], v);
+            }
+        }
+    }
+
+    // copy row y of src (or fill) to dst[off]
+    void row (Bitmap src, int y, long[] dst, int off) {
+        if (y >= 0 && y < height)
+            System.arraycopy (src.words, y * wordline, dst, off, wordline);
+        else
+            Arrays.fill (dst, off, off + wordline, fill);
+    }
+}
@@ -0,0 +1,192 @@
+package tripod.colony;
+
+import java.util.Arrays;
+
+import tripod.colony.Bitmap.ChainCode;
+
+/**
+ * 8-neighbor codes of the pixels of a bitmap. The code of a pixel packs
+ * its 8 neighbors into a byte where bit i is p(i) (see Bitmap.p0()):
+ *
+ *   p(7)  p(0)  p(1)
+ *   p(6)   p    p(2)
+ *   p(5)  p(4)  p(3)
+ *
+ * and pixels outside the bitmap are off. Everything that only depends
+ * on the 8-neighbor (number of neighbors, crossing number, chain code
+ * directions, endpoints and junctions, ...) is a lookup in a 256-entry
+ * table.
+ *
+ * An instance is a cursor over the rows of a bitmap: it keeps copies of
+ * the rows above, at and below the current row with a zero word on
+ * either side, so the code of any pixel of the row is a few shifts of
+ * three words with no bound checks. Moving down one row only copies the
+ * new row below. The copies aren't updated if the bitmap changes; call
+ * row() again to reload them. Nothing is allocated after construction.
+ */
+public class Neighborhood {
+    static final ChainCode[] CODES = ChainCode.values ();
+
+    // neighborhood bit of each ChainCode (by ordinal)
+    static final int[] BIT = {2, 1, 0, 7, 6, 5, 4, 3};
+
+    // the 4-neighbors N, E, S and W
+    static final int CROSS = 0x55;
+
+    static final int[] COUNT = new int[256];
+    static final int[] CROSSINGS = new int[256];
+    static final int[] CHAIN = new int[256]; // mask of ChainCode ordinals
+    static final ChainCode[][] DIRECTIONS = new ChainCode[256][];
+    static {
+        for (int code = 0; code < 256; ++code) {
+            COUNT[code] = Integer.bitCount (code);
+
+            // number of off to on transitions in the order p0, p1, ..., p7
+            int n = 0;
+            for (int i = 0; i < 8; ++i)
+                if ((code >> i & 1) == 1 && (code >> ((i + 7) & 7) & 1) == 0)
+                    ++n;
+            CROSSINGS[code] = n;
+
+            int mask = 0;
+            for (int c = 0; c < 8; ++c)
+                if ((code & (1 << BIT[c])) != 0)
+                    mask |= 1 << c;
+            CHAIN[code] = mask;
+
+            ChainCode[] dirs = new ChainCode[COUNT[code]];
+            for (int c = 0, k = 0; c < 8; ++c)
+                if ((mask & (1 << c)) != 0)
+                    dirs[k++] = CODES[c];
+            DIRECTIONS[code] = dirs;
+        }
+    }
+
+    /*
+     * number of neighbors that are on
+     */
+    public static int count (int code) { return COUNT[code]; }
+
+    /*
+     * number of off to on transitions going around the neighbors (the
+     * crossing number, A(p) of the thinning)
+     */
+    public static int crossings (int code) { return CROSSINGS[code]; }
+
+    /*
+     * the directions of the neighbors that are on as a mask where bit
+     * c is set for the ChainCode with ordinal c
+     */
+    public static int chainMask (int code) { return CHAIN[code]; }
+
+    /*
+     * the directions of the neighbors that are on in ChainCode order;
+     * the array is shared and must not be modified
+     */
+    public static ChainCode[] directions (int code) {
+        return DIRECTIONS[code];
+    }
+
+    public static boolean contains (int code, ChainCode c) {
+        return (code & (1 << BIT[c.ordinal ()])) != 0;
+    }
+
+    /*
+     * a pixel with a 4-neighbor that is off
+     */
+    public static boolean isBoundary (int code) {
+        return (code & CROSS) != CROSS;
+    }
+
+    /*
+     * the end of a line: a single neighbor or two neighbors next to
+     * each other
+     */
+    public static boolean isEndpoint (int code) {
+        return COUNT[code] == 1 || (COUNT[code] == 2 && CROSSINGS[code] == 1);
+    }
+
+    /*
+     * the meeting point of three or more branches of a thin line
+     */
+    public static boolean isJunction (int code) {
+        return CROSSINGS[code] >= 3;
+    }
+
+    final Bitmap bitmap;
+    final int wordline;
+    long[] above, row, below;
+    int y = -2;
+
+    public Neighborhood (Bitmap bitmap) {
+        this.bitmap = bitmap;
+        wordline = bitmap.wordline ();
+        above = new long[wordline + 2];
+        row = new long[wordline + 2];
+        below = new long[wordline + 2];
+    }
+
+    public int y () { return y; }
+
+    /*
+     * make y the current row
+     */
+    public Neighborhood row (int y) {
+        if (y == this.y + 1) {
+            long[] t = above;
+            above = row;
+            row = below;
+            below = t;
+            load (below, y + 1);
+        }
+        else {
+            load (above, y - 1);
+            load (row, y);
+            load (below, y + 1);
+        }
+        this.y = y;
+        return this;
+    }
+
+    void load (long[] buf, int y) {
+        if (y >= 0 && y < bitmap.height ())
+            System.arraycopy (bitmap.words, y * wordline, buf, 1, wordline);
+        else
+            Arrays.fill (buf, 0l);
+    }
+
+    /*
+     * code of pixel x of the current row
+     */
+    public int code (int x) {
+        // pixel x is bit x + 64 of a padded row, so its window starts at
+        //  bit q = x + 63
+        int q = x + 63, i = q >>> 6, o = q & 63;
+        return Bitmap.NEIGHBORHOOD[window (above, i, o) << 6
+                                   | window (row, i, o) << 3
+                                   | window (below, i, o)];
+    }
+
+    public int code (int x, int y) {
+        if (y != this.y)
+            row (y);
+        return code (x);
+    }
+
+    /*
+     * the pixels of word i of the current row (packed as in the bitmap)
+     * whose 4-neighbors are all on; a whole word of pixels at a time
+     */
+    public long cross (int i) {
+        long w = row[i + 1];
+        return w & above[i + 1] & below[i + 1]
+            & ((w >>> 1) | (row[i] << 63)) & ((w << 1) | (row[i + 2] >>> 63));
+    }
+
+    // the 3 bits starting at bit o of word i (the second shift of the
+    //  next word is split so that o = 0 shifts by 64)
+    static int window (long[] buf, int i, int o) {
+        return (int) (((buf[i] << o) | ((buf[i + 1] >>> 1) >>> (63 - o)))
+                      >>> 61);
+    }
+}
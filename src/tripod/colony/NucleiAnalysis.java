@@ -116,11 +116,13 @@ public class NucleiAnalysis {
             logger.info("=========== "+channel.getClass().getName()
                         +" ["+channel.pmin+","+channel.pmax+"] ===========");
             */
-            Raster raster = channel.raster();
-            double total = raster.getWidth()*raster.getHeight();
+            double total = channel.width*channel.height;
+            ThresholdStack stack = new ThresholdStack (channel);
+            // the precision of every threshold from one sweep
+            double[] precision = iou.precision
+                (stack, channel.pmin+1, channel.pmax-1);
             for (int t = channel.pmin+1; t < channel.pmax; ++t) {
-                Bitmap b = Util.threshold(raster, t);
-                double p = iou.precision(b);
+                double p = precision[t-channel.pmin-1];
                 if (model == null) {
                     model = new ThresholdModel (channel, p, t);
                     model.tmf = tmf[i];
@@ -132,7 +134,7 @@ public class NucleiAnalysis {
                     model.tmf = tmf[i];
                     //logger.info("++ threshold = "+t+" precision = "+p);
                 }
-                tmf[i][t] = b.area()/total;
+                tmf[i][t] = stack.area(t)/total;
             }
 
             if (false) {
@@ -199,15 +201,18 @@ public class NucleiAnalysis {
             Grayscale gs = new Grayscale (image.getData());
             Channel channel = gs.getChannel();
             double total = image.getWidth()*image.getHeight();
+            ThresholdStack.Sweep sweep =
+                new ThresholdStack (channel).sweep(channel.pmin+1);
             for (int t = channel.pmin+1; t < channel.pmax; ++t) {
-                Bitmap b = Util.threshold(channel.raster(), t);
+                Bitmap b = sweep.seek(t);
                 //System.out.println(t+" "+(b.area()/total));
-                List<Shape> cc = b.connectedComponents();
+                ComponentTable cc = b.componentTable();
                 //System.out.println(t+" "+cc.size());
                 double avgcc = 0;
-                for (Shape s : cc) {
-                    java.awt.Rectangle r = s.getBounds();
-                    avgcc += Math.sqrt(r.width*r.width + r.height * r.height);
+                for (int k = 0; k < cc.size(); ++k) {
+                    int w = cc.xmax[k] - cc.xmin[k] + 1;
+                    int h = cc.ymax[k] - cc.ymin[k] + 1;
+                    avgcc += Math.sqrt(w*w + h*h);
                 }
                 avgcc /= cc.size();
                 System.out.println(t+" "+avgcc+" "+cc.size());
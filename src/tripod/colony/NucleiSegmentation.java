@@ -6,6 +6,7 @@ import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import java.awt.Shape;
+import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.*;
@@ -30,6 +31,31 @@ public class NucleiSegmentation extends DefaultTreeModel {
     static final double MAXERR = 30.0;
     static final double AMS = 1.5; // absoluyte min score
 
+    /*
+     * the count, sum and sum of squares of the pixels of a region
+     */
+    static class Moments {
+        final long count, sum, sumsq;
+
+        Moments (long count, long sum, long sumsq) {
+            this.count = count;
+            this.sum = sum;
+            this.sumsq = sumsq;
+        }
+
+        double mean () {
+            return count > 0 ? (double)sum / count : 0.;
+        }
+
+        // population variance
+        double variance () {
+            if (count == 0)
+                return 0.;
+            double m = mean ();
+            return Math.max(0., (double)sumsq / count - m*m);
+        }
+    }
+
     public static class Region implements Shape, Comparable<Region> {
         public final double meanp; // pixel mean
         public final double varp; // pixel variance
@@ -37,35 +63,38 @@ public class NucleiSegmentation extends DefaultTreeModel {
         public final Shape geom;
         public final double snr;
 
-        Region (Raster raster, Shape geom) {
-            Rectangle r = geom.getBounds();
-            int x = r.x+r.width, y = r.y+r.height, k = 0;
-            double m = 0., v = 0., m0;
-            int min = Integer.MAX_VALUE, max = 0;
-            for (int i = r.x; i < x; ++i) {
-                for (int j = r.y; j < y; ++j) {
-                    if (geom.contains(i, j)) {
-                        int z = raster.getSample(i, j, 0) & 0xff;
-                        m0 = m;
-                        m += (z - m) / ++k;
-                        v += (z - m0) * (z - m);
-                    }
-                }
-            }
-            
-            if (k > 0)
-                v /= k;
+        /*
+         * the whole channel; its sums come from the histogram
+         */
+        Region (Channel channel) {
+            this (new Rectangle (0, 0, channel.width, channel.height),
+                  moments (channel.histogram));
+        }
 
-            area = k;
-            meanp = m;
-            varp = v;
-            snr = v > 0. ? (m / Math.sqrt(v)) : 0.;
-            
-            this.geom = geom;
+        Region (Shape geom, Moments m) {
+            this (geom, (int)m.count, m.mean(), m.variance());
         }
 
-        public boolean equals (Region r) {
-            return geom.getBounds().equals(r.geom.getBounds());
+        static Moments moments (int[] histogram) {
+            long n = 0, s = 0, s2 = 0;
+            for (int v = 0; v < histogram.length; ++v) {
+                long h = histogram[v];
+                n += h;
+                s += v*h;
+                s2 += v*v*h;
+            }
+            return new Moments (n, s, s2);
+        }
+
+        /*
+         * a region whose stats are known, e.g., a node of a ComponentTree
+         */
+        Region (Shape geom, int area, double meanp, double varp) {
+            this.geom = geom;
+            this.area = area;
+            this.meanp = meanp;
+            this.varp = varp;
+            snr = varp > 0. ? (meanp / Math.sqrt(varp)) : 0.;
         }
 
         public int compareTo (Region r) {
@@ -94,6 +123,28 @@ public class NucleiSegmentation extends DefaultTreeModel {
             return contains;
         }
         
+        /*
+         * same as contains(r) for convex shapes such as the hulls of a
+         * ComponentTree: if every vertex of r (which must have an area)
+         * is inside, so is r and there's no need to intersect them
+         */
+        boolean containsConvex (Region r) {
+            if (r.geom instanceof Polygon) {
+                Polygon p = (Polygon)r.geom;
+                long a = 0;
+                boolean inside = geom.getBounds().contains(p.getBounds());
+                for (int i = 0, j = p.npoints-1; inside && i < p.npoints;
+                     j = i++) {
+                    a += (long)p.xpoints[j]*p.ypoints[i]
+                        - (long)p.xpoints[i]*p.ypoints[j];
+                    inside = geom.contains(p.xpoints[i], p.ypoints[i]);
+                }
+                if (inside && a != 0)
+                    return true;
+            }
+            return contains (r);
+        }
+        
         public boolean _contains (Region r) {
             PathIterator pi = r.geom.getPathIterator(null);
             double[] coord = new double[6];
@@ -157,66 +208,70 @@ public class NucleiSegmentation extends DefaultTreeModel {
         }
     }
 
-    public static class Layer {
-        public final Bitmap bitmap;
-        public final int threshold;
-        public final Region[] regions;
-        public final double meanr;
-        public final double varr;
-
-        Layer (Raster raster, int threshold) {
-            bitmap = Util.threshold(raster, threshold);
-            List<Shape> cc = bitmap.polyConnectedComponents();
-            int k = 0;
-            double m = 0., m0, v = 0., maxr = 0.;
-            regions = new Region[cc.size()];
-            for (Shape s : cc) {
-                Region r = new Region (raster, s);
-                m0 = m;
-                m += (r.area - m)/(k+1);
-                v += (r.area - m0)*(r.area - m);
-                regions[k++] = r;
-            }
-            
-            if (k > 0)
-                v /= k;
-
-            meanr = m;
-            varr = v;
-            
-            this.threshold = threshold;
-        }
-        
-        public String toString () {
-            return "Layer{threshold="+threshold+",regions="+regions.length
-                +",mean="+meanr+",var="+varr+"}";
-        }
-    }
-
     public static class Segment implements TreeNode, Comparable<Segment> {
         public Segment parent;
         public int depth;
         public Region region; // region
         public List<Segment> children = new ArrayList<>();
-        public final Layer layer;
-        public final Bitmap bitmap;
+        final int threshold;
+        final ThresholdStack stack; // null for the root
+        // pixels of the threshold within the region in the coordinates
+        //  of its bounds; see mask()
+        SparseBitmap mask;
+
+        /*
+         * the root, i.e., the whole image at no threshold
+         */
+        Segment (Region region) {
+            this (null, -1, region);
+        }
 
-        Segment (Layer layer, Region region) {
-            this.layer = layer;
+        /*
+         * a segment of the given threshold of the stack; its mask is
+         * only built when it's asked for
+         */
+        Segment (ThresholdStack stack, int threshold, Region region) {
             this.region = region;
-            bitmap = layer != null ? layer.bitmap.crop(region) : null;
+            this.threshold = threshold;
+            this.stack = stack;
         }
 
         Segment (Segment copy) {
-            this.layer = copy.layer;
             this.region = copy.region;
             this.depth = copy.depth;
-            this.bitmap = copy.bitmap;
+            this.threshold = copy.threshold;
+            this.stack = copy.stack;
+            this.mask = copy.mask;
         }
 
-        public int threshold () {
-            return layer != null ? layer.threshold : -1;
+        /*
+         * pixels of the thresholded image within the region in the
+         * coordinates of its bounds or null
+         */
+        public SparseBitmap mask () {
+            if (mask == null && stack != null) {
+                Rectangle r = region.getBounds();
+                if (r.width > 0 && r.height > 0) {
+                    // threshold only the bounds, not the whole channel
+                    Bitmap bm = Util.threshold
+                        (stack.channel.raster(r), threshold,
+                         stack.isInverted(threshold));
+                    mask = new SparseBitmap(bm, r.x, r.y, region);
+                }
+            }
+            return mask;
         }
+
+        /*
+         * the mask as a dense bitmap (same as cropping the thresholded
+         * image to the region) or null
+         */
+        public Bitmap bitmap () {
+            SparseBitmap mask = mask ();
+            return mask != null ? mask.toBitmap() : null;
+        }
+
+        public int threshold () { return threshold; }
         public int area () { return region.area; }
         public void add (Segment child) {
             child.parent = this;
@@ -318,7 +373,7 @@ public class NucleiSegmentation extends DefaultTreeModel {
         }
 
         public Point2D[] dominantPoints () {
-            return bitmap.trace().dominantPoints().toArray(new Point2D[0]);
+            return bitmap().trace().dominantPoints().toArray(new Point2D[0]);
         }
 
         public int getX () { return region.getBounds().x; }
@@ -334,7 +389,7 @@ public class NucleiSegmentation extends DefaultTreeModel {
             }
             
             Rectangle r = region.getBounds();
-            ps.println(depth+": t="+layer+" r=[x="+r.x+",y="+r.y+",width="
+            ps.println(depth+": t="+threshold+" r=[x="+r.x+",y="+r.y+",width="
                        +r.width+",height="+r.height+"]");
             for (Segment s : children)
                 s.print(ps);
@@ -392,52 +447,69 @@ public class NucleiSegmentation extends DefaultTreeModel {
         this.channel = channel;
         this.raster = channel.raster();
 
-        setRoot (new Segment
-                 (null, new Region (raster,
-                                    new Rectangle (0, 0, channel.width,
-                                                   channel.height))));
+        setRoot (new Segment (new Region (channel)));
         
-        int pmin = channel.pmin+1, pmax = channel.pmax-1;
-        Segment[] segments;
-        { List<Segment> segs = new ArrayList<>();
-            for (int t = pmin; t <= pmax; ++t) {
-                Layer layer = new Layer (raster, t);                
-                logger.info("...processing layer "+t+"/"
-                            +pmax+".. "+layer.regions.length);
-
-                for (Region r : layer.regions) {
-                    if (r.area > MINAREA)
-                        segs.add(new Segment (layer, r));
-                }
+        // every thresholded component is a node of the tree; a component
+        //  that's the same over a range of thresholds is a single node
+        //  with the highest of them
+        logger.info("... constructing segment hierarchy");
+        ThresholdStack stack = new ThresholdStack (channel);
+        ComponentTree tree = new ComponentTree
+            (stack, channel.pmin+1, channel.pmax-1);
+        Segment[] nodes = new Segment[tree.size()];
+        List<Integer> order = new ArrayList<>();
+        for (int k = 0; k < tree.size(); ++k) {
+            // the components of a node's children are smaller, so they're
+            //  never segments if the node isn't
+            if (tree.isPolygon(k) && tree.count(k) > MINAREA) {
+                Region r = new Region (tree.getShape(k), tree.count(k),
+                                       tree.mean(k), tree.variance(k));
+                nodes[k] = new Segment (stack, tree.threshold(k), r);
+                order.add(k);
             }
-            Collections.sort(segs);
-                
-            // now prune identical segments regardless of layers
-            List<Segment> remove = new ArrayList<>();
-            Segment p = null;
-            for (Segment s : segs) {
-                if (p != null) {
-                    if (p.region.equals(s.region))
-                        remove.add(p);
-                }
-                p = s;
+        }
+        logger.info("... "+order.size()+" segments in "
+                    +tree.size()+" nodes");
+
+        // children are added in segment order
+        Collections.sort(order, (a, b) -> nodes[a].compareTo(nodes[b]));
+        int[] child = new int[tree.size()], sibling = new int[tree.size()];
+        Arrays.fill(child, -1);
+        List<Integer> tops = new ArrayList<>();
+        for (int i = order.size() - 1; i >= 0; --i) {
+            int k = order.get(i), p = tree.parent(k);
+            if (p >= 0) {
+                sibling[k] = child[p];
+                child[p] = k;
+            }
+            else {
+                tops.add(k);
             }
-                
-            for (Segment s : remove)
-                segs.remove(s);
-                
-            segs.add(getRoot ());
-            segments = segs.toArray(new Segment[0]);
         }
 
-        logger.info("... constructing segment hierarchy");
-        for (int i = 0; i < segments.length; ++i) {
-            for (int j = i+1; j < segments.length; ++j) {
-                if (segments[j].contains(segments[i])) {
-                    segments[j].add(segments[i]);
-                    break;
+        // the min-tree and the max-tree don't meet, so the top of each
+        //  is nested as the layered hierarchy did it, under the smallest
+        //  segment of the other tree that contains it (if any) and comes
+        //  after it in order, so there are no cycles
+        Segment root = getRoot ();
+        for (int k : order) {
+            int p = tree.parent(k);
+            if (p < 0) {
+                for (int t : tops) {
+                    if (tree.isInverted(t) != tree.isInverted(k))
+                        p = container (nodes, child, sibling, t, nodes[k], p);
                 }
             }
+            Segment parent = p >= 0 ? nodes[p] : root;
+            nodes[k].parent = parent;
+            parent.children.add(nodes[k]);
+        }
+        Segment.updateDepth(root, 0);
+        int reached = count (root) - 1;
+        if (reached != order.size()) {
+            throw new IllegalStateException
+                (order.size()-reached+" of "+order.size()
+                 +" segment(s) not reachable from the root!");
         }
 
         logger.info("... pruning segments");
@@ -451,6 +523,33 @@ public class NucleiSegmentation extends DefaultTreeModel {
         fireTreeStructureChanged (this, null, null, null);
     }
 
+    /*
+     * the smallest of best and the segments of the subtree of node k
+     * that come after seg in order and contain it; a segment that
+     * doesn't has no descendant that does, since they're smaller
+     */
+    static int container (Segment[] nodes, int[] child, int[] sibling,
+                          int k, Segment seg, int best) {
+        if (seg.compareTo(nodes[k]) >= 0
+            || !nodes[k].region.containsConvex(seg.region))
+            return best;
+        int found = best;
+        for (int c = child[k]; c >= 0; c = sibling[c])
+            found = container (nodes, child, sibling, c, seg, found);
+        if (found == best
+            && (best < 0 || nodes[k].compareTo(nodes[best]) < 0))
+            found = k;
+        return found;
+    }
+
+    // number of segments in the subtree of seg
+    static int count (Segment seg) {
+        int n = 1;
+        for (Segment child : seg.children)
+            n += count (child);
+        return n;
+    }
+
     public NucleiSegmentation filter (double x, double y) {
         NucleiSegmentation nuseg = new NucleiSegmentation ();
         nuseg.channel = channel;
@@ -599,7 +698,8 @@ public class NucleiSegmentation extends DefaultTreeModel {
         
         for (Segment leaf : leafs) {
             Segment[] path = leaf.getBranchAncestorPath();
-            if (path.length <= minpath) {
+            // the root is a leaf once everything else is pruned
+            if (path.length <= minpath && leaf.parent != null) {
                 leaf.remove(); // prune this leaf..
                 pruned.add(leaf);
             }
@@ -231,11 +231,12 @@ public class NucleiViewer extends JFrame implements ActionListener {
         if (segmentCb.isSelected())
             zpane.setSegment(seg);
 
-        if (seg.bitmap != null) {
+        if (seg.mask() != null) {
             try {
                 String name = "seg."+seg.depth+"."+seg.threshold();        
-                seg.bitmap.writetif(name+".tif");
-                seg.bitmap.thin().write("png", new File (name+".thin.png"));
+                Bitmap bitmap = seg.bitmap();
+                bitmap.writetif(name+".tif");
+                bitmap.thin().write("png", new File (name+".thin.png"));
 
                 NucleiSegmentation.debugSegment(seg, 30.0);
             }
@@ -115,26 +115,69 @@ public class RLE {
         return encode (components, bitmap);
     }
     
+    /*
+     * one mask per label of the label image
+     */
+    public static List<Run[]> encode (LabelImage labels) {
+        return labels.encode();
+    }
+
+    /*
+     * encode the connected components of the bitmap; components whose
+     * convex hulls overlap are merged into one mask. Components that
+     * are only a single row or column are skipped.
+     */
     public List<Run[]> encode () {
-        List<Shape> merged = new ArrayList<>();
-        for (Shape p : bitmap.polyConnectedComponents()) {
-            Area a = new Area (p);
-            Rectangle r = p.getBounds();
-            List<Shape> remove = new ArrayList<>();
-            for (Shape s : merged) {
-                Area b = new Area (s);
-                if (b.intersects(r)
-                    || b.contains(r) || a.contains(s.getBounds())) {
-                    a.add(b);
-                    remove.add(s);
+        ConnectedComponents cc = new ConnectedComponents (bitmap);
+        ComponentTable table = cc.getTable();
+        int n = table.size();
+
+        // components sorted by xmin so that only components whose
+        //  bounds overlap in x are compared
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; ++k)
+            order[k] = k;
+        Arrays.sort(order, (a, b) -> table.xmin[a] - table.xmin[b]);
+
+        int[] parent = new int[n];
+        for (int k = 0; k < n; ++k)
+            parent[k] = k;
+        for (int i = 0; i < n; ++i) {
+            int a = order[i];
+            if (!table.isPolygon(a))
+                continue;
+            for (int j = i+1; j < n && table.xmin[order[j]] <= table.xmax[a];
+                 ++j) {
+                int b = order[j];
+                if (table.isPolygon(b)
+                    && table.ymin[b] <= table.ymax[a]
+                    && table.ymin[a] <= table.ymax[b]
+                    && (table.getShape(a).intersects(hullBounds (table, b))
+                        || table.getShape(b).intersects
+                        (hullBounds (table, a)))) {
+                    ConnectedComponents.union(parent, a, b);
                 }
             }
-            merged.add(a);
-            for (Shape s : remove)
-                merged.remove(s);
+        }
+
+        // mask number of each label in order of the first component
+        int[] map = new int[n+1];
+        int nmasks = 0;
+        for (int k = 0; k < n; ++k) {
+            if (table.isPolygon(k)) {
+                int root = ConnectedComponents.find(parent, k);
+                map[k+1] = root == k ? ++nmasks : map[root+1];
+            }
         }
         
-        return encode (merged, bitmap);
+        return cc.getLabelImage().encode(map, nmasks);
+    }
+
+    // bounds of the convex hull of component k
+    static Rectangle hullBounds (ComponentTable table, int k) {
+        return new Rectangle (table.xmin[k], table.ymin[k],
+                              table.xmax[k] - table.xmin[k],
+                              table.ymax[k] - table.ymin[k]);
     }
 
     public void encode (String name, OutputStream os) {
@@ -0,0 +1,147 @@
+package tripod.colony;
+
+import java.awt.image.Raster;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DataBufferInt;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads one band of a Raster a row at a time. Rasters whose samples
+ * are bytes or unsigned shorts in a ComponentSampleModel (which covers
+ * the gray, interleaved and banded rasters) or ints packed as in
+ * TYPE_INT_RGB are read straight from the data array; anything else
+ * goes through Raster.getSamples().
+ */
+final class Samples {
+    final Raster raster;
+    final int band, width, height, minx, miny;
+    final byte[] bytes;
+    final short[] shorts;
+    final int[] ints;
+    final int mask, shift; // of the band in a packed int
+    final int offset, pixelStride, scanlineStride;
+
+    Samples (Raster raster) {
+        this (raster, 0);
+    }
+
+    Samples (Raster raster, int band) {
+        this.raster = raster;
+        this.band = band;
+        width = raster.getWidth ();
+        height = raster.getHeight ();
+        minx = raster.getMinX ();
+        miny = raster.getMinY ();
+
+        byte[] b = null;
+        short[] s = null;
+        int[] n = null;
+        int off = 0, ps = 0, ss = 0, m = 0, sh = 0;
+        DataBuffer db = raster.getDataBuffer ();
+        if (raster.getSampleModel () instanceof SinglePixelPackedSampleModel
+            && db instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel sm =
+                (SinglePixelPackedSampleModel) raster.getSampleModel ();
+            m = sm.getBitMasks ()[band];
+            sh = sm.getBitOffsets ()[band];
+            ps = 1;
+            ss = sm.getScanlineStride ();
+            off = db.getOffset ()
+                + (minx - raster.getSampleModelTranslateX ())
+                + (miny - raster.getSampleModelTranslateY ()) * ss;
+            n = ((DataBufferInt) db).getData ();
+        }
+        else if (raster.getSampleModel () instanceof ComponentSampleModel
+            && (db instanceof DataBufferByte
+                || db instanceof DataBufferUShort)) {
+            ComponentSampleModel sm =
+                (ComponentSampleModel) raster.getSampleModel ();
+            int bank = sm.getBankIndices ()[band];
+            ps = sm.getPixelStride ();
+            ss = sm.getScanlineStride ();
+            // index of the sample of (minx, miny)
+            off = db.getOffsets ()[bank] + sm.getBandOffsets ()[band]
+                + (minx - raster.getSampleModelTranslateX ()) * ps
+                + (miny - raster.getSampleModelTranslateY ()) * ss;
+            if (db instanceof DataBufferByte)
+                b = ((DataBufferByte) db).getData (bank);
+            else
+                s = ((DataBufferUShort) db).getData (bank);
+        }
+        bytes = b;
+        shorts = s;
+        ints = n;
+        mask = m;
+        shift = sh;
+        offset = off;
+        pixelStride = ps;
+        scanlineStride = ss;
+    }
+
+    /*
+     * the samples of row y (0 is the first row of the raster)
+     */
+    int[] row (int y, int[] dst) {
+        int i = offset + y * scanlineStride;
+        if (bytes != null) {
+            for (int x = 0; x < width; ++x, i += pixelStride)
+                dst[x] = bytes[i] & 0xff;
+        }
+        else if (shorts != null) {
+            for (int x = 0; x < width; ++x, i += pixelStride)
+                dst[x] = shorts[i] & 0xffff;
+        }
+        else if (ints != null) {
+            for (int x = 0; x < width; ++x, ++i)
+                dst[x] = (ints[i] & mask) >>> shift;
+        }
+        else {
+            raster.getSamples (minx, miny + y, width, 1, band, dst);
+        }
+        return dst;
+    }
+
+    /*
+     * pack row[0..width) into words[off..] (most significant bit
+     * first) with a bit set where the sample is greater than threshold
+     */
+    static void greater (int[] row, int width, int threshold,
+                         long[] words, int off) {
+        int x = 0, k = off;
+        for (; x + 64 <= width; x += 64) {
+            long w = 0l;
+            for (int b = 0; b < 64; ++b)
+                w = (w << 1) | ((threshold - row[x + b]) >>> 31);
+            words[k++] = w;
+        }
+        if (x < width) {
+            long w = 0l;
+            for (int b = x; b < width; ++b)
+                w = (w << 1) | ((threshold - row[b]) >>> 31);
+            words[k] = w << (64 - (width - x));
+        }
+    }
+
+    /*
+     * same as greater() for samples less than threshold
+     */
+    static void less (int[] row, int width, int threshold,
+                      long[] words, int off) {
+        int x = 0, k = off;
+        for (; x + 64 <= width; x += 64) {
+            long w = 0l;
+            for (int b = 0; b < 64; ++b)
+                w = (w << 1) | ((row[x + b] - threshold) >>> 31);
+            words[k++] = w;
+        }
+        if (x < width) {
+            long w = 0l;
+            for (int b = x; b < width; ++b)
+                w = (w << 1) | ((row[b] - threshold) >>> 31);
+            words[k] = w << (64 - (width - x));
+        }
+    }
+}
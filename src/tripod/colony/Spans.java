@@ -0,0 +1,318 @@
+package tripod.colony;
+
+import java.util.Arrays;
+
+import java.awt.Shape;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.PathIterator;
+
+/**
+ * The pixels of a Shape as horizontal spans [x0, x1) per row. The
+ * crossings of each row with the edges of the shape are computed with
+ * the same arithmetic as Polygon.contains() for a Polygon and as
+ * Path2D.contains() for any other shape (after flattening its curves),
+ * so for polygons, rectangles and line-only paths pixel (x,y) is in a
+ * span if and only if shape.contains(x, y). Other shapes (e.g., Area)
+ * can differ from their own contains() on boundary pixels.
+ *
+ * The edges are bucketed by their first row and rows are scanned with
+ * an active edge list, so a shape costs O(edges + rows + crossings)
+ * instead of a contains() call per pixel. Both the even-odd and the
+ * non-zero winding rule are supported.
+ */
+public class Spans {
+    static final double FLATNESS = 0.1;
+
+    final int y0, y1; // rows [y0, y1)
+    final int[] first; // spans of row y are first[y-y0] .. first[y-y0+1]-1
+    int[] xs; // span i is [xs[2i], xs[2i+1])
+    int nspans;
+
+    public Spans (Shape shape) {
+        this (shape, null);
+    }
+
+    /*
+     * only the pixels inside clip (if not null) are included
+     */
+    public Spans (Shape shape, Rectangle clip) {
+        shape = unwrap (shape);
+        Rectangle r = shape.getBounds ();
+        if (clip != null)
+            r = r.intersection (clip);
+
+        y0 = r.y;
+        y1 = r.y + Math.max (0, r.height);
+        first = new int[y1 - y0 + 1];
+        xs = new int[2 * Math.max (4, y1 - y0)];
+        if (r.width <= 0 || r.height <= 0)
+            return;
+
+        int cx0 = r.x, cx1 = r.x + r.width;
+        if (shape instanceof Rectangle2D) {
+            rectangle ((Rectangle2D) shape, cx0, cx1);
+        }
+        else {
+            Edges edges = shape instanceof Polygon
+                ? new Edges ((Polygon) shape) : new Edges (shape);
+            edges.scan (this, y0, y1, cx0, cx1);
+        }
+    }
+
+    /*
+     * shapes that delegate contains() to another shape
+     */
+    static Shape unwrap (Shape shape) {
+        for (;;) {
+            if (shape instanceof Nucleus)
+                shape = ((Nucleus) shape).polygon;
+            else if (shape instanceof NucleiSegmentation.Region)
+                shape = ((NucleiSegmentation.Region) shape).geom;
+            else
+                return shape;
+        }
+    }
+
+    void rectangle (Rectangle2D rect, int cx0, int cx1) {
+        // Rectangle2D.contains: x >= rx && x < rx + w, same for y
+        int rx0 = Math.max (cx0, ceil (rect.getX ()));
+        int rx1 = Math.min (cx1, ceil (rect.getX () + rect.getWidth ()));
+        int ry0 = ceil (rect.getY ());
+        int ry1 = ceil (rect.getY () + rect.getHeight ());
+        for (int y = y0; y < y1; ++y) {
+            first[y - y0] = nspans;
+            if (y >= ry0 && y < ry1 && rx0 < rx1)
+                add (rx0, rx1);
+        }
+        first[y1 - y0] = nspans;
+    }
+
+    /*
+     * the smallest integer x such that x >= v; for an integer x, x < v
+     * if and only if x < ceil(v)
+     */
+    static int ceil (double v) {
+        if (v >= Integer.MAX_VALUE) return Integer.MAX_VALUE;
+        if (v <= Integer.MIN_VALUE) return Integer.MIN_VALUE;
+        return (int) Math.ceil (v);
+    }
+
+    void add (int x0, int x1) {
+        if (2 * nspans + 2 > xs.length)
+            xs = Arrays.copyOf (xs, 2 * xs.length);
+        xs[2 * nspans] = x0;
+        xs[2 * nspans + 1] = x1;
+        ++nspans;
+    }
+
+    /*
+     * the edges of a shape; for each edge and row the pixels x with
+     * x < crossing(y) are to the left of the edge. A pixel is inside
+     * if the edges to its right satisfy the winding rule.
+     */
+    static class Edges {
+        final boolean polygon; // Polygon.contains or Path2D.contains
+        final int mask; // -1 for non-zero, 1 for even-odd winding
+        int n;
+        double[] ex0 = new double[16], ey0 = new double[16];
+        double[] ex1 = new double[16], ey1 = new double[16];
+        int[] top = new int[16], bottom = new int[16]; // rows [top, bottom)
+
+        Edges (Polygon p) {
+            polygon = true;
+            mask = 1;
+            if (p.npoints > 2) {
+                int lastx = p.xpoints[p.npoints - 1];
+                int lasty = p.ypoints[p.npoints - 1];
+                for (int i = 0; i < p.npoints; ++i) {
+                    int curx = p.xpoints[i], cury = p.ypoints[i];
+                    if (cury != lasty)
+                        add (lastx, lasty, curx, cury);
+                    lastx = curx;
+                    lasty = cury;
+                }
+            }
+        }
+
+        Edges (Shape shape) {
+            polygon = false;
+            PathIterator pi = shape.getPathIterator (null, FLATNESS);
+            mask = pi.getWindingRule () == PathIterator.WIND_NON_ZERO ? -1 : 1;
+
+            double[] c = new double[6];
+            double movx = 0, movy = 0, curx = 0, cury = 0;
+            int segments = 0;
+            for (; !pi.isDone (); pi.next (), ++segments) {
+                switch (pi.currentSegment (c)) {
+                case PathIterator.SEG_MOVETO:
+                    if (cury != movy)
+                        add (curx, cury, movx, movy);
+                    movx = curx = c[0];
+                    movy = cury = c[1];
+                    break;
+
+                case PathIterator.SEG_LINETO:
+                    if (c[1] != cury)
+                        add (curx, cury, c[0], c[1]);
+                    curx = c[0];
+                    cury = c[1];
+                    break;
+
+                case PathIterator.SEG_CLOSE:
+                    if (cury != movy)
+                        add (curx, cury, movx, movy);
+                    curx = movx;
+                    cury = movy;
+                    break;
+                }
+            }
+            if (cury != movy)
+                add (curx, cury, movx, movy);
+            if (segments < 2) // Path2D.contains needs at least 2 segments
+                n = 0;
+        }
+
+        void add (double x0, double y0, double x1, double y1) {
+            if (n == ex0.length) {
+                int size = 2 * n;
+                ex0 = Arrays.copyOf (ex0, size);
+                ey0 = Arrays.copyOf (ey0, size);
+                ex1 = Arrays.copyOf (ex1, size);
+                ey1 = Arrays.copyOf (ey1, size);
+                top = Arrays.copyOf (top, size);
+                bottom = Arrays.copyOf (bottom, size);
+            }
+            ex0[n] = x0;
+            ey0[n] = y0;
+            ex1[n] = x1;
+            ey1[n] = y1;
+            // the rows y with min(y0,y1) <= y < max(y0,y1)
+            top[n] = ceil (Math.min (y0, y1));
+            bottom[n] = ceil (Math.max (y0, y1));
+            ++n;
+        }
+
+        /*
+         * the crossing of edge e with a row in [top[e], bottom[e])
+         */
+        int crossing (int e, int y) {
+            double x0 = ex0[e], y0 = ey0[e], x1 = ex1[e], y1 = ey1[e];
+
+            double left = Math.min (x0, x1), right = Math.max (x0, x1);
+            double t;
+            if (polygon) {
+                // edge from (lastx,lasty)=(x0,y0) to (curx,cury)=(x1,y1)
+                t = y1 < y0
+                    ? x1 + ceil ((y - y1) / (y0 - y1) * (x0 - x1))
+                    : x0 + (double) ceil ((y - y0) / (y0 - y1) * (x0 - x1));
+            }
+            else {
+                t = ceil (x0 + (y - y0) * (x1 - x0) / (y1 - y0));
+            }
+            return (int) Math.max (ceil (left), Math.min (ceil (right), t));
+        }
+
+        /*
+         * rows [y0, y1) scanned with an active edge list; edges enter
+         * the list in the order of their first row and the list is
+         * kept sorted by crossing, which rarely changes between rows
+         */
+        void scan (Spans spans, int y0, int y1, int cx0, int cx1) {
+            long[] order = new long[n];
+            for (int e = 0; e < n; ++e)
+                order[e] = ((long) top[e] << 32) | e;
+            Arrays.sort (order);
+
+            int[] active = new int[n];
+            long[] keys = new long[n];
+            int nactive = 0;
+            for (int y = y0, next = 0; y < y1; ++y) {
+                spans.first[y - y0] = spans.nspans;
+
+                int k = 0;
+                for (int i = 0; i < nactive; ++i)
+                    if (bottom[active[i]] > y)
+                        active[k++] = active[i];
+                nactive = k;
+                for (; next < n && (int) (order[next] >> 32) <= y; ++next) {
+                    int e = (int) order[next];
+                    if (bottom[e] > y)
+                        active[nactive++] = e;
+                }
+                if (nactive > 0)
+                    row (spans, y, active, keys, nactive, cx0, cx1);
+            }
+            spans.first[y1 - y0] = spans.nspans;
+        }
+
+        void row (Spans spans, int y, int[] active, long[] keys, int m,
+                  int cx0, int cx1) {
+            int winding = 0;
+            for (int i = 0; i < m; ++i) {
+                int e = active[i];
+                int dir = ey0[e] < ey1[e] ? 1 : -1;
+                // sort by crossing, then direction
+                long key = ((long) crossing (e, y) << 1) | (dir > 0 ? 1 : 0);
+                int j = i;
+                for (; j > 0 && keys[j - 1] > key; --j) {
+                    keys[j] = keys[j - 1];
+                    active[j] = active[j - 1];
+                }
+                keys[j] = key;
+                active[j] = e;
+                winding += dir;
+            }
+
+            // winding is the count of the edges to the right of x
+            int start = Integer.MIN_VALUE;
+            boolean inside = (winding & mask) != 0;
+            for (int i = 0; i < m; ++i) {
+                int x = (int) (keys[i] >> 1);
+                winding -= (keys[i] & 1) != 0 ? 1 : -1;
+                boolean in = (winding & mask) != 0;
+                if (in != inside) {
+                    if (in) {
+                        start = x;
+                    }
+                    else {
+                        int a = Math.max (start, cx0), b = Math.min (x, cx1);
+                        if (a < b)
+                            spans.add (a, b);
+                    }
+                    inside = in;
+                }
+            }
+        }
+    }
+
+    public int ymin () { return y0; }
+    public int ymax () { return y1; }
+    public int size () { return nspans; }
+
+    /*
+     * spans of row y are first(y) .. first(y+1)-1; rows outside
+     * [ymin, ymax) have no spans
+     */
+    public int first (int y) {
+        return y < y0 ? 0 : y >= y1 ? nspans : first[y - y0];
+    }
+
+    public int x0 (int i) { return xs[2 * i]; }
+    public int x1 (int i) { return xs[2 * i + 1]; }
+
+    public long area () {
+        long area = 0;
+        for (int i = 0; i < nspans; ++i)
+            area += xs[2 * i + 1] - xs[2 * i];
+        return area;
+    }
+
+    public boolean contains (int x, int y) {
+        for (int i = first (y), j = first (y + 1); i < j; ++i)
+            if (x >= xs[2 * i] && x < xs[2 * i + 1])
+                return true;
+        return false;
+    }
+}
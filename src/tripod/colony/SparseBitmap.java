@@ -0,0 +1,375 @@
+package tripod.colony;
+
+import java.util.Arrays;
+
+import java.awt.Shape;
+import java.awt.Rectangle;
+
+/**
+ * A bitmap stored as the runs [x0, x1) of pixels that are on in each
+ * row; run i of row y is one of first(y) .. first(y+1)-1, as in Spans.
+ * A mask with little foreground (or few long runs) takes 8 bytes per
+ * run instead of a bit per pixel, and and(), or(), area() and the
+ * iteration over runs are linear in the number of runs. It's immutable.
+ *
+ * Conversion to and from a Bitmap is lossless. Masks in the RLE format
+ * (vertical runs) are converted directly to row runs without a dense
+ * bitmap in between.
+ */
+public class SparseBitmap {
+    final int width, height;
+    final int[] first; // runs of row y are first[y] .. first[y+1]-1
+    final int[] xs; // run i is [xs[2i], xs[2i+1])
+    final long area;
+
+    SparseBitmap (int width, int height, int[] first, int[] xs) {
+        this.width = width;
+        this.height = height;
+        this.first = first;
+        this.xs = xs;
+        long a = 0;
+        for (int i = 0, n = first[height]; i < n; ++i)
+            a += xs[2 * i + 1] - xs[2 * i];
+        area = a;
+    }
+
+    public SparseBitmap (Bitmap bitmap) {
+        this (bitmap, null);
+    }
+
+    /*
+     * the pixels of bitmap inside the shape in the coordinates of its
+     * bounds; same as new SparseBitmap (bitmap.crop (shape)) but without
+     * the dense copy
+     */
+    public SparseBitmap (Bitmap bitmap, Shape shape) {
+        this (new Builder (bitmap, shape, 0, 0));
+    }
+
+    /*
+     * same as above for a bitmap whose pixel (0, 0) is (x, y) in the
+     * coordinates of the shape, e.g., thresholded from a sub-region
+     */
+    SparseBitmap (Bitmap bitmap, int x, int y, Shape shape) {
+        this (new Builder (bitmap, shape, x, y));
+    }
+
+    SparseBitmap (Builder b) {
+        this (b.width, b.height, b.first, Arrays.copyOf (b.xs, 2 * b.n));
+    }
+
+    /*
+     * the mask of the RLE runs in a width x height image (the stride
+     * of the runs is the height)
+     */
+    public static SparseBitmap fromRuns (int width, int height,
+                                         RLE.Run... runs) {
+        // runs in column order visit the pixels of each row left to
+        //  right, so a new row run starts wherever the pixel to the left
+        //  wasn't visited just before
+        int[] last = new int[height];
+        Arrays.fill (last, -2);
+        int[] first = new int[height + 1];
+        RLE.Run[] sorted = runs.clone ();
+        Arrays.sort (sorted);
+        for (RLE.Run r : sorted) {
+            check (r, width, height);
+            for (int y = r.y0; y <= r.y1; ++y) {
+                if (last[y] != r.x - 1 && last[y] != r.x)
+                    ++first[y + 1];
+                last[y] = r.x;
+            }
+        }
+        for (int y = 0; y < height; ++y)
+            first[y + 1] += first[y];
+
+        int[] xs = new int[2 * first[height]];
+        int[] next = Arrays.copyOf (first, height); // current run per row
+        Arrays.fill (last, -2);
+        for (RLE.Run r : sorted) {
+            for (int y = r.y0; y <= r.y1; ++y) {
+                if (last[y] == r.x)
+                    continue; // overlapping runs
+                if (last[y] != r.x - 1)
+                    xs[2 * next[y]++] = r.x;
+                xs[2 * next[y] - 1] = r.x + 1;
+                last[y] = r.x;
+            }
+        }
+        return new SparseBitmap (width, height, first, xs);
+    }
+
+    static void check (RLE.Run r, int width, int height) {
+        if (r.stride != height || r.x < 0 || r.x >= width
+            || r.y0 < 0 || r.y1 >= height) {
+            throw new IllegalArgumentException
+                ("Run " + r + " is outside of " + width + "x" + height);
+        }
+    }
+
+    public int width () { return width; }
+    public int height () { return height; }
+    public long area () { return area; }
+    public boolean isEmpty () { return area == 0; }
+
+    /*
+     * number of runs
+     */
+    public int size () { return first[height]; }
+
+    /*
+     * runs of row y are first(y) .. first(y+1)-1
+     */
+    public int first (int y) { return first[y]; }
+    public int x0 (int i) { return xs[2 * i]; }
+    public int x1 (int i) { return xs[2 * i + 1]; }
+
+    public boolean get (int x, int y) {
+        if (y < 0 || y >= height)
+            return false;
+        // last run that starts at or before x
+        int lo = first[y], hi = first[y + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (xs[2 * mid] <= x)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return hi >= first[y] && x < xs[2 * hi + 1];
+    }
+
+    /*
+     * bounds of the pixels that are on (empty if there are none)
+     */
+    public Rectangle getBounds () {
+        int xmin = width, xmax = 0, ymin = height, ymax = 0;
+        for (int y = 0; y < height; ++y) {
+            int i = first[y], j = first[y + 1];
+            if (i == j)
+                continue;
+            if (y < ymin) ymin = y;
+            ymax = y + 1;
+            if (xs[2 * i] < xmin) xmin = xs[2 * i];
+            if (xs[2 * j - 1] > xmax) xmax = xs[2 * j - 1];
+        }
+        return ymin < ymax
+            ? new Rectangle (xmin, ymin, xmax - xmin, ymax - ymin)
+            : new Rectangle ();
+    }
+
+    public Bitmap toBitmap () {
+        Bitmap bitmap = new Bitmap (width, height);
+        int wordline = bitmap.wordline ();
+        for (int y = 0, row = 0; y < height; ++y, row += wordline)
+            for (int i = first[y]; i < first[y + 1]; ++i)
+                Bitmap.setBits (bitmap.words, row, xs[2 * i], xs[2 * i + 1]);
+        return bitmap;
+    }
+
+    /*
+     * the runs in the RLE format, in column order
+     */
+    public RLE.Run[] toRuns () {
+        // a vertical run starts or ends at a column where a row and the
+        //  one above it differ, so only the columns in the difference of
+        //  consecutive rows are visited
+        int[] start = new int[width];
+        Arrays.fill (start, -1);
+        int[] rx = new int[64], ry = new int[64], rlen = new int[64];
+        int[] count = new int[width + 1];
+        int n = 0;
+        for (int y = 0; y <= height; ++y) {
+            int i = y > 0 ? first[y - 1] : 0, i1 = y > 0 ? first[y] : 0;
+            int j = y < height ? first[y] : 0;
+            int j1 = y < height ? first[y + 1] : 0;
+            // walk the boundaries of both rows in order; ia and ja are
+            //  the boundaries consumed so a pixel is in a run if the
+            //  count is odd
+            int ia = 2 * i, ja = 2 * j, x = 0;
+            while (ia < 2 * i1 || ja < 2 * j1) {
+                int bx = ia < 2 * i1 ? xs[ia] : Integer.MAX_VALUE;
+                int by = ja < 2 * j1 ? xs[ja] : Integer.MAX_VALUE;
+                int next = Math.min (bx, by);
+                if (((ia ^ ja) & 1) != 0) {
+                    // columns [x, next) are on in exactly one of the rows
+                    for (int c = x; c < next; ++c) {
+                        if (start[c] < 0) {
+                            start[c] = y;
+                        }
+                        else {
+                            if (n == rx.length) {
+                                rx = Arrays.copyOf (rx, 2 * n);
+                                ry = Arrays.copyOf (ry, 2 * n);
+                                rlen = Arrays.copyOf (rlen, 2 * n);
+                            }
+                            rx[n] = c;
+                            ry[n] = start[c];
+                            rlen[n++] = y - start[c];
+                            ++count[c + 1];
+                            start[c] = -1;
+                        }
+                    }
+                }
+                if (bx == next) ++ia;
+                if (by == next) ++ja;
+                x = next;
+            }
+        }
+
+        // by column; the runs of a column are already in row order
+        for (int c = 0; c < width; ++c)
+            count[c + 1] += count[c];
+        RLE.Run[] runs = new RLE.Run[n];
+        for (int k = 0; k < n; ++k)
+            runs[count[rx[k]]++] = new RLE.Run
+                (height, rx[k] * height + ry[k] + 1, rlen[k]);
+        return runs;
+    }
+
+    public SparseBitmap and (SparseBitmap other) {
+        return combine (other, true);
+    }
+
+    public SparseBitmap or (SparseBitmap other) {
+        return combine (other, false);
+    }
+
+    SparseBitmap combine (SparseBitmap other, boolean and) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException
+                ("Bitmaps have different sizes: " + width + "x" + height
+                 + " vs " + other.width + "x" + other.height);
+        }
+
+        Builder b = new Builder (width, height);
+        int[] ys = other.xs;
+        for (int y = 0; y < height; ++y) {
+            int i = first[y], i1 = first[y + 1];
+            int j = other.first[y], j1 = other.first[y + 1];
+            if (and) {
+                while (i < i1 && j < j1) {
+                    int a = Math.max (xs[2 * i], ys[2 * j]);
+                    int e = Math.min (xs[2 * i + 1], ys[2 * j + 1]);
+                    if (a < e)
+                        b.add (a, e);
+                    if (xs[2 * i + 1] < ys[2 * j + 1]) ++i;
+                    else ++j;
+                }
+            }
+            else {
+                // merge by start and coalesce runs that overlap or touch
+                int s = -1, e = -1;
+                while (i < i1 || j < j1) {
+                    int a0, a1;
+                    if (j >= j1 || (i < i1 && xs[2 * i] <= ys[2 * j])) {
+                        a0 = xs[2 * i];
+                        a1 = xs[2 * i++ + 1];
+                    }
+                    else {
+                        a0 = ys[2 * j];
+                        a1 = ys[2 * j++ + 1];
+                    }
+                    if (s >= 0 && a0 <= e) {
+                        e = Math.max (e, a1);
+                    }
+                    else {
+                        if (s >= 0)
+                            b.add (s, e);
+                        s = a0;
+                        e = a1;
+                    }
+                }
+                if (s >= 0)
+                    b.add (s, e);
+            }
+            b.endRow (y);
+        }
+        return new SparseBitmap (b);
+    }
+
+    /*
+     * growable runs of a bitmap being built row by row
+     */
+    static class Builder {
+        final int width, height;
+        final int[] first;
+        int[] xs = new int[64];
+        int n;
+
+        Builder (int width, int height) {
+            this.width = width;
+            this.height = height;
+            first = new int[height + 1];
+        }
+
+        Builder (Bitmap bitmap, Shape shape, int ox, int oy) {
+            Rectangle r = shape != null ? shape.getBounds ()
+                : new Rectangle (ox, oy, bitmap.width (), bitmap.height ());
+            width = Math.max (0, r.width);
+            height = Math.max (0, r.height);
+            first = new int[height + 1];
+            Spans spans = shape != null ? new Spans (shape, r) : null;
+            for (int j = 0; j < height; ++j) {
+                int y = r.y + j;
+                if (y >= oy && y < oy + bitmap.height ()) {
+                    if (spans == null) {
+                        scan (bitmap, y - oy, 0, bitmap.width (), 0);
+                    }
+                    else {
+                        for (int i = spans.first (y);
+                             i < spans.first (y + 1); ++i)
+                            scan (bitmap, y - oy, spans.x0 (i) - ox,
+                                  spans.x1 (i) - ox, r.x - ox);
+                    }
+                }
+                endRow (j);
+            }
+        }
+
+        void add (int x0, int x1) {
+            if (2 * n + 2 > xs.length)
+                xs = Arrays.copyOf (xs, 2 * xs.length);
+            xs[2 * n] = x0;
+            xs[2 * n + 1] = x1;
+            ++n;
+        }
+
+        void endRow (int y) {
+            first[y + 1] = n;
+        }
+
+        /*
+         * add the runs of row y of the bitmap within [x0, x1), shifted
+         * by -dx; the runs are found a word at a time
+         */
+        void scan (Bitmap bitmap, int y, int x0, int x1, int dx) {
+            x0 = Math.max (0, x0);
+            x1 = Math.min (bitmap.width (), x1);
+            int row = y * bitmap.wordline ();
+            long[] words = bitmap.words;
+            for (int x = x0; x < x1; ) {
+                int s = next (words, row, x, x1, false);
+                if (s >= x1)
+                    break;
+                int e = next (words, row, s, x1, true);
+                add (s - dx, e - dx);
+                x = e;
+            }
+        }
+
+        // first pixel in [x, end) that is off (off = true) or on, or end
+        static int next (long[] words, int row, int x, int end,
+                         boolean off) {
+            int k = x >> 6;
+            long w = (off ? ~words[row + k] : words[row + k])
+                & (-1l >>> (x & 63));
+            while (w == 0) {
+                if ((++k << 6) >= end)
+                    return end;
+                w = off ? ~words[row + k] : words[row + k];
+            }
+            return Math.min (end, (k << 6) + Long.numberOfLeadingZeros (w));
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package tripod.colony;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import java.awt.Shape;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+
+/**
+ * Candidate cuts of Bitmap.split(). A cut removes the pixels within
+ * slack of the segment between two concave points; it's a valid split
+ * if it leaves exactly two components with a non-degenerate hull (see
+ * ComponentTable.isPolygon()). The best split is the one with the
+ * smallest difference between the pixel counts of the two parts; ties
+ * go to the first pair in the order of the points.
+ *
+ * The bitmap is labeled once. The pixels within slack of a segment are
+ * an interval in each row, so a cut splits each run it crosses into at
+ * most a left and a right piece. A candidate only fills the components
+ * its cut touches, over these pieces rather than pixels, starting from
+ * the runs next to the cut; every other component is unchanged.
+ * Candidates are independent and can be evaluated on a ForkJoinPool.
+ */
+class Splitter {
+    static final int PAIRS = 8; // pairs per task
+
+    final Bitmap bitmap;
+    final int width, height;
+    final double slack;
+    final Point2D[] points;
+    final ConnectedComponents cc;
+    final ComponentTable table;
+    final int[] polygons; // components with a non-degenerate hull
+
+    Splitter (Bitmap bitmap, double slack, List<Point2D> points) {
+        this.bitmap = bitmap;
+        this.slack = slack;
+        this.points = points.toArray (new Point2D[0]);
+        width = bitmap.width ();
+        height = bitmap.height ();
+
+        cc = new ConnectedComponents (bitmap);
+        table = cc.getTable ();
+        int n = 0;
+        for (int k = 0; k < table.size; ++k)
+            if (table.isPolygon (k))
+                ++n;
+        polygons = new int[n];
+        for (int k = 0, i = 0; k < table.size; ++k)
+            if (table.isPolygon (k))
+                polygons[i++] = k;
+    }
+
+    /*
+     * the two hulls of the best cut or null
+     */
+    Shape[] split (ForkJoinPool pool) {
+        int n = points.length, npairs = n * (n - 1) / 2;
+        int[] pi = new int[npairs], pj = new int[npairs];
+        for (int i = 0, p = 0; i < n; ++i)
+            for (int j = i + 1; j < n; ++j, ++p) {
+                pi[p] = i;
+                pj[p] = j;
+            }
+
+        long[] delta = new long[npairs];
+        Task task = new Task (this, pi, pj, delta, 0, npairs);
+        if (pool != null && npairs > PAIRS)
+            pool.invoke (task);
+        else
+            task.compute ();
+
+        int best = -1;
+        for (int p = 0; p < npairs; ++p)
+            if (delta[p] >= 0 && (best < 0 || delta[p] < delta[best]))
+                best = p;
+        if (best < 0)
+            return null;
+
+        // label the parts of the best cut for their hulls
+        Cut cut = new Cut (points[pi[best]], points[pj[best]]);
+        Bitmap b = new Bitmap (bitmap);
+        for (int y = cut.y0; y < cut.y1; ++y)
+            for (int x = cut.x0 (y); x < cut.x1 (y); ++x)
+                b.set (x, y, false);
+        return b.polyConnectedComponents ().toArray (new Shape[0]);
+    }
+
+    static class Task extends RecursiveAction {
+        final Splitter splitter;
+        final int[] pi, pj;
+        final long[] delta;
+        final int lo, hi;
+
+        Task (Splitter splitter, int[] pi, int[] pj, long[] delta,
+              int lo, int hi) {
+            this.splitter = splitter;
+            this.pi = pi;
+            this.pj = pj;
+            this.delta = delta;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo > PAIRS) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll (new Task (splitter, pi, pj, delta, lo, mid),
+                           new Task (splitter, pi, pj, delta, mid, hi));
+            }
+            else {
+                Scratch s = new Scratch (splitter);
+                for (int p = lo; p < hi; ++p)
+                    delta[p] = splitter.evaluate (pi[p], pj[p], p + 1, s);
+            }
+        }
+    }
+
+    /*
+     * per task buffers; marks are tagged with the pair so they never
+     * need to be cleared
+     */
+    static class Scratch {
+        final int[] mark; // per run piece (2*run+side): tag if filled
+        final int[] comps; // per component: tag if touched by the cut
+        int[] stack = new int[256];
+
+        Scratch (Splitter s) {
+            mark = new int[2 * s.cc.nruns];
+            comps = new int[s.table.size];
+        }
+    }
+
+    /*
+     * the pixels within slack of the segment p-q; these are the
+     * interval [x0(y), x1(y)) of each row y in [y0, y1)
+     */
+    class Cut {
+        final int y0, y1;
+        final int[] xs;
+
+        Cut (Point2D p, Point2D q) {
+            double px = p.getX (), py = p.getY ();
+            double qx = q.getX (), qy = q.getY ();
+            int bx0 = (int) Math.ceil (Math.min (px, qx) - slack);
+            int bx1 = (int) Math.floor (Math.max (px, qx) + slack) + 1;
+            int by0 = (int) Math.ceil (Math.min (py, qy) - slack);
+            int by1 = (int) Math.floor (Math.max (py, qy) + slack) + 1;
+            bx0 = Math.max (0, bx0);
+            bx1 = Math.min (width, bx1);
+            y0 = Math.min (height, Math.max (0, by0));
+            y1 = Math.max (y0, Math.min (height, by1));
+
+            xs = new int[2 * (y1 - y0)];
+            for (int y = y0, i = 0; y < y1; ++y, i += 2) {
+                int a = bx0, b = bx1;
+                while (a < b && !within (px, py, qx, qy, a, y))
+                    ++a;
+                while (b > a && !within (px, py, qx, qy, b - 1, y))
+                    --b;
+                xs[i] = a;
+                xs[i + 1] = b;
+            }
+        }
+
+        boolean within (double px, double py, double qx, double qy,
+                        int x, int y) {
+            return Line2D.ptSegDist (px, py, qx, qy, x, y) < slack;
+        }
+
+        int x0 (int y) {
+            return y >= y0 && y < y1 ? xs[2 * (y - y0)] : 0;
+        }
+
+        int x1 (int y) {
+            return y >= y0 && y < y1 ? xs[2 * (y - y0) + 1] : 0;
+        }
+
+        /*
+         * the part of run r on the left (side 0) or right (side 1) of
+         * the cut as x0 << 32 | x1; a run in a row without a cut is
+         * all on the left
+         */
+        long piece (int r, int side) {
+            int y = cc.runy[r], a = cc.runx0[r], b = cc.runx1[r];
+            int c0 = x0 (y), c1 = x1 (y);
+            if (c0 < c1) {
+                if (side == 0)
+                    b = Math.min (b, c0);
+                else
+                    a = Math.max (a, c1);
+            }
+            else if (side == 1) {
+                b = a;
+            }
+            return ((long) a << 32) | b;
+        }
+    }
+
+    /*
+     * difference between the pixel counts of the two parts if the cut
+     * between points i and j is a valid split, -1 otherwise
+     */
+    long evaluate (int i, int j, int tag, Scratch s) {
+        Cut cut = new Cut (points[i], points[j]);
+
+        // components the cut removes pixels from; untouched polygons
+        //  stay as they are
+        int untouched = polygons.length;
+        for (int y = cut.y0; y < cut.y1; ++y) {
+            int c0 = cut.x0 (y), c1 = cut.x1 (y);
+            for (int r = cc.rows[y]; r < cc.rows[y + 1]; ++r) {
+                if (cc.runx0[r] >= c1 || cc.runx1[r] <= c0)
+                    continue;
+                int k = cc.labels[r];
+                if (s.comps[k] != tag) {
+                    s.comps[k] = tag;
+                    if (table.isPolygon (k))
+                        --untouched;
+                }
+            }
+        }
+        if (untouched > 2)
+            return -1;
+
+        // every part of a touched component has a run next to the cut
+        long[] areas = new long[2];
+        int parts = 0;
+        int ya = Math.max (0, cut.y0 - 1), yb = Math.min (height, cut.y1 + 1);
+        for (int r = cc.rows[ya]; r < cc.rows[yb]; ++r) {
+            if (s.comps[cc.labels[r]] != tag)
+                continue;
+            for (int side = 0; side < 2; ++side) {
+                int node = 2 * r + side;
+                long pc = cut.piece (r, side);
+                if (s.mark[node] == tag || (int) (pc >> 32) >= (int) pc)
+                    continue;
+
+                long[] part = fill (cut, node, tag, s);
+                if (part[0] > 0) { // polygon
+                    if (untouched + parts == 2)
+                        return -1;
+                    areas[parts++] = part[1];
+                }
+            }
+        }
+        if (untouched + parts != 2)
+            return -1;
+
+        for (int k : polygons) {
+            if (parts == 2)
+                break;
+            if (s.comps[k] != tag)
+                areas[parts++] = table.count[k];
+        }
+        return Math.abs (areas[0] - areas[1]);
+    }
+
+    /*
+     * 8-connected fill over the run pieces from node; returns {1 if
+     * the part has a non-degenerate hull, pixel count}
+     */
+    long[] fill (Cut cut, int node, int tag, Scratch s) {
+        int xmin = width, xmax = -1, ymin = height, ymax = -1;
+        long count = 0;
+        int top = 0;
+        s.mark[node] = tag;
+        s.stack[top++] = node;
+        while (top > 0) {
+            int n = s.stack[--top], r = n >> 1, y = cc.runy[r];
+            long pc = cut.piece (r, n & 1);
+            int a = (int) (pc >> 32), b = (int) pc;
+            count += b - a;
+            if (a < xmin) xmin = a;
+            if (b - 1 > xmax) xmax = b - 1;
+            if (y < ymin) ymin = y;
+            if (y > ymax) ymax = y;
+
+            // pieces in the rows above and below that touch [a-1, b]
+            for (int yy = y - 1; yy <= y + 1; yy += 2) {
+                if (yy < 0 || yy >= height)
+                    continue;
+                for (int q = cc.rows[yy]; q < cc.rows[yy + 1]
+                         && cc.runx0[q] <= b; ++q) {
+                    if (cc.runx1[q] < a)
+                        continue;
+                    for (int side = 0; side < 2; ++side) {
+                        int m = 2 * q + side;
+                        if (s.mark[m] == tag)
+                            continue;
+                        long qc = cut.piece (q, side);
+                        int qa = (int) (qc >> 32), qb = (int) qc;
+                        if (qa < qb && qa <= b && qb >= a) {
+                            s.mark[m] = tag;
+                            if (top == s.stack.length)
+                                s.stack = Arrays.copyOf (s.stack, 2 * top);
+                            s.stack[top++] = m;
+                        }
+                    }
+                }
+            }
+        }
+        return new long[]{xmax > xmin && ymax > ymin ? 1 : 0, count};
+    }
+}
@@ -0,0 +1,173 @@
+package tripod.colony;
+
+import java.util.Arrays;
+import java.awt.Rectangle;
+
+/**
+ * Structuring element for binary morphology (see Bitmap.erode() and
+ * Bitmap.dilate()). An element is a set of pixel offsets from its
+ * origin, stored as a union of rectangles so that each rectangle can
+ * be applied as a horizontal and a vertical line.
+ */
+public class StructuringElement {
+    // rectangles [x0,x1] x [y0,y1] (inclusive offsets) as quadruples
+    final int[] rects;
+
+    StructuringElement (int[] rects) {
+        if (rects.length == 0)
+            throw new IllegalArgumentException
+                ("Empty structuring element");
+        this.rects = rects;
+    }
+
+    /*
+     * (2*radius+1) x (2*radius+1) square centered at the origin
+     */
+    public static StructuringElement square (int radius) {
+        return rectangle (radius, radius);
+    }
+
+    /*
+     * (2*rx+1) x (2*ry+1) rectangle centered at the origin
+     */
+    public static StructuringElement rectangle (int rx, int ry) {
+        if (rx < 0 || ry < 0)
+            throw new IllegalArgumentException ("Negative radius");
+        return new StructuringElement (new int[]{-rx, -ry, rx, ry});
+    }
+
+    /*
+     * horizontal and vertical line of length 2*radius+1 through the
+     * origin
+     */
+    public static StructuringElement cross (int radius) {
+        if (radius < 0)
+            throw new IllegalArgumentException ("Negative radius");
+        return new StructuringElement (new int[]{
+                -radius, 0, radius, 0,
+                0, -radius, 0, radius
+            });
+    }
+
+    /*
+     * pixels within radius of the origin (dx*dx + dy*dy <= r*r) as a
+     * union of centered rectangles, one per distinct row width
+     */
+    public static StructuringElement disk (int radius) {
+        if (radius < 0)
+            throw new IllegalArgumentException ("Negative radius");
+        int[] half = new int[radius + 2]; // half width of row dy
+        long r2 = (long) radius * radius;
+        for (int dy = 0, w = radius; dy <= radius; ++dy) {
+            while ((long) w * w + (long) dy * dy > r2) --w;
+            half[dy] = w;
+        }
+        half[radius + 1] = -1;
+
+        int[] rects = new int[0];
+        int n = 0;
+        for (int dy = 0; dy <= radius; ++dy) {
+            // the last row of this width
+            if (half[dy] > half[dy + 1]) {
+                rects = Arrays.copyOf (rects, n + 4);
+                rects[n++] = -half[dy];
+                rects[n++] = -dy;
+                rects[n++] = half[dy];
+                rects[n++] = dy;
+            }
+        }
+        return new StructuringElement (rects);
+    }
+
+    /*
+     * the pixels of mask that are on; (cx,cy) is the origin
+     */
+    public static StructuringElement custom (Bitmap mask, int cx, int cy) {
+        int[][] rows = new int[mask.height ()][];
+        for (int y = 0; y < mask.height (); ++y) {
+            int[] segs = new int[0];
+            int n = 0;
+            for (int x = 0; x < mask.width (); ) {
+                if (!mask.isOn (x, y)) {
+                    ++x;
+                    continue;
+                }
+                int x0 = x;
+                while (x < mask.width () && mask.isOn (x, y))
+                    ++x;
+                segs = Arrays.copyOf (segs, n + 2);
+                segs[n++] = x0 - cx;
+                segs[n++] = x - 1 - cx;
+            }
+            rows[y] = segs;
+        }
+        return fromRows (rows, -cy);
+    }
+
+    public static StructuringElement custom (boolean[][] mask,
+                                             int cx, int cy) {
+        int h = mask.length, w = h > 0 ? mask[0].length : 0;
+        Bitmap b = new Bitmap (w, h);
+        for (int y = 0; y < h; ++y)
+            for (int x = 0; x < w; ++x)
+                if (mask[y][x])
+                    b.set (x, y, true);
+        return custom (b, cx, cy);
+    }
+
+    /*
+     * rows[i] are the inclusive [x0,x1] segments of row y0+i; a segment
+     * that repeats in consecutive rows becomes a single rectangle
+     */
+    static StructuringElement fromRows (int[][] rows, int y0) {
+        int[] rects = new int[0];
+        int n = 0;
+        for (int i = 0; i < rows.length; ++i) {
+            for (int s = 0; s < rows[i].length; s += 2) {
+                int x0 = rows[i][s], x1 = rows[i][s + 1];
+                if (i > 0 && hasSegment (rows[i - 1], x0, x1))
+                    continue; // already part of a rectangle
+
+                int j = i + 1;
+                while (j < rows.length && hasSegment (rows[j], x0, x1))
+                    ++j;
+                rects = Arrays.copyOf (rects, n + 4);
+                rects[n++] = x0;
+                rects[n++] = y0 + i;
+                rects[n++] = x1;
+                rects[n++] = y0 + j - 1;
+            }
+        }
+        return new StructuringElement (rects);
+    }
+
+    static boolean hasSegment (int[] segs, int x0, int x1) {
+        for (int s = 0; s < segs.length; s += 2)
+            if (segs[s] == x0 && segs[s + 1] == x1)
+                return true;
+        return false;
+    }
+
+    public boolean contains (int dx, int dy) {
+        for (int i = 0; i < rects.length; i += 4)
+            if (dx >= rects[i] && dx <= rects[i + 2]
+                && dy >= rects[i + 1] && dy <= rects[i + 3])
+                return true;
+        return false;
+    }
+
+    /*
+     * bounding box of the offsets
+     */
+    public Rectangle getBounds () {
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE;
+        int x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int i = 0; i < rects.length; i += 4) {
+            x0 = Math.min (x0, rects[i]);
+            y0 = Math.min (y0, rects[i + 1]);
+            x1 = Math.max (x1, rects[i + 2]);
+            y1 = Math.max (y1, rects[i + 3]);
+        }
+        return new Rectangle (x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+}
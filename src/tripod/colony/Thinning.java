@@ -0,0 +1,294 @@
+package tripod.colony;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Table driven implementation of the Carrasco/Forcada variant of the
+ * NWG thinning algorithm; see Bitmap.thin() for the description. The
+ * 8-neighbor of a pixel is packed into an 8-bit code (bit i is p(i),
+ * see Neighborhood) and whether the pixel is deleted is looked up in a
+ * 256-entry table for each parity. Only the first pass looks at every
+ * pixel; after that only the contour pixels that can still change are
+ * revisited.
+ *
+ * The parallel version splits the image into horizontal bands. Each
+ * sub-iteration only reads the image as it was before the
+ * sub-iteration, so all bands decide concurrently, then (after a
+ * barrier) apply their deletions concurrently. The result is the same
+ * as the sequential version.
+ */
+class Thinning {
+    /*
+     * DELETE[parity][code] is true if a pixel with neighborhood code
+     * is deleted in a sub-iteration of the given parity
+     */
+    static final boolean[][] DELETE = new boolean[2][256];
+    static {
+        for (int parity = 0; parity < 2; ++parity)
+            for (int code = 0; code < 256; ++code)
+                DELETE[parity][code] = delete (parity, code);
+    }
+
+    /*
+     * the deletion rule of Bitmap.thin() evaluated on a neighborhood code
+     */
+    static boolean delete (int parity, int code) {
+        int[] p = new int[8];
+        for (int i = 0; i < 8; ++i)
+            p[i] = (code >> i) & 1;
+
+        int nb = Neighborhood.COUNT[code];
+        int ap = Neighborhood.CROSSINGS[code];
+
+        int cp = ((p[0] == 0 && p[1] == 0 && p[2] == 0 && p[5] == 0
+                   && p[4] == 1 && p[6] == 1)
+                  || (p[2] == 0 && p[3] == 0 && p[4] == 0 && p[7] == 0
+                      && p[6] == 1 && p[0] == 1)) ? 1 : 0;
+        int dp = ((p[1] == 0 && p[4] == 0 && p[5] == 0 && p[6] == 0
+                   && p[0] == 1 && p[2] == 1)
+                  || (p[0] == 0 && p[3] == 0 && p[6] == 0 && p[7] == 0
+                      && p[2] == 1 && p[4] == 1)) ? 1 : 0;
+
+        if (nb > 1 && nb < 7
+            && (ap == 1 || ((1 - parity) * cp + parity * dp) == 1)) {
+            int ep = (p[2] + p[4]) * p[0] * p[6];
+            int fp = (p[6] + p[0]) * p[4] * p[2];
+            return (parity == 0 && ep == 0) || (parity == 1 && fp == 0);
+        }
+        return false;
+    }
+
+    final Bitmap thin;
+    final Bitmap queued; // pixels that are (or were) on the worklist
+
+    // worklist of candidate pixels as (x,y) pairs
+    int[] list = new int[1024];
+    int size;
+
+    Thinning (Bitmap bitmap) {
+        thin = new Bitmap (bitmap);
+        queued = new Bitmap (bitmap.width (), bitmap.height ());
+    }
+
+    Bitmap thin () {
+        // the initial candidates are all contour pixels that can be
+        //  deleted; interior pixels (7 or 8 neighbors) only become
+        //  candidates once one of their neighbors is deleted
+        for (int y = 0; y < thin.height (); ++y) {
+            int row = y * thin.wordline ();
+            for (int i = 0; i < thin.wordline (); ++i) {
+                for (long w = thin.words[row + i]; w != 0; w &= w - 1) {
+                    int x = (i << 6) + 63 - Long.numberOfTrailingZeros (w);
+                    enqueue (x, y);
+                }
+            }
+        }
+
+        int[] deleted = new int[list.length];
+        int parity = 1;
+        int ndel;
+        do {
+            parity = 1 - parity;
+            boolean[] table = DELETE[parity];
+
+            // decide on the current image; deletions are deferred
+            if (deleted.length < list.length)
+                deleted = new int[list.length];
+            ndel = 0;
+            int keep = 0;
+            for (int i = 0; i < size; i += 2) {
+                int x = list[i], y = list[i + 1];
+                int code = thin.neighborhood (x, y);
+                if (table[code]) {
+                    deleted[ndel++] = x;
+                    deleted[ndel++] = y;
+                }
+                else if (Neighborhood.COUNT[code] > 1) {
+                    list[keep++] = x;
+                    list[keep++] = y;
+                }
+                // else the pixel is an end point or isolated and can
+                //   never be deleted since its neighbors only decrease
+            }
+            size = keep;
+
+            for (int i = 0; i < ndel; i += 2)
+                thin.set (deleted[i], deleted[i + 1], false);
+
+            // only pixels next to a deleted pixel can change their
+            //  decision, so these are the only new candidates
+            for (int i = 0; i < ndel; i += 2) {
+                int x = deleted[i], y = deleted[i + 1];
+                for (int dy = -1; dy <= 1; ++dy)
+                    for (int dx = -1; dx <= 1; ++dx)
+                        if (thin.get (x + dx, y + dy))
+                            enqueue (x + dx, y + dy);
+            }
+        }
+        while (ndel > 0);
+
+        return thin;
+    }
+
+    void enqueue (int x, int y) {
+        if (!queued.isOn (x, y)) {
+            int nb = Neighborhood.COUNT[thin.neighborhood (x, y)];
+            if (nb > 1 && nb < 7) {
+                queued.set (x, y, true);
+                if (size + 2 > list.length)
+                    list = Arrays.copyOf (list, list.length * 2);
+                list[size++] = x;
+                list[size++] = y;
+            }
+        }
+    }
+
+    /*
+     * minimum number of rows per band for the parallel version
+     */
+    static final int MIN_BAND = 16;
+
+    static Bitmap thin (Bitmap bitmap, ForkJoinPool pool) {
+        return new Bands (bitmap, pool).thin ();
+    }
+
+    static class Bands {
+        final Bitmap thin;
+        final ForkJoinPool pool;
+        final long[] words, deleted;
+        final int width, height, wordline, rows, nbands;
+        final int[] changed; // last pass in which each band changed
+        final boolean[] active;
+        boolean[] table;
+
+        Bands (Bitmap bitmap, ForkJoinPool pool) {
+            thin = new Bitmap (bitmap);
+            this.pool = pool;
+            width = thin.width ();
+            height = thin.height ();
+            wordline = thin.wordline ();
+            words = thin.words;
+            deleted = new long[words.length];
+
+            // use several bands per thread; smaller bands let more of
+            //  the image be skipped once it stops changing
+            int n = Math.max (1, pool.getParallelism () * 4);
+            rows = Math.max (MIN_BAND, (height + n - 1) / n);
+            nbands = Math.max (1, (height + rows - 1) / rows);
+            changed = new int[nbands];
+            Arrays.fill (changed, -3);
+            active = new boolean[nbands];
+        }
+
+        Bitmap thin () {
+            int parity = 1;
+            boolean any;
+            for (int pass = 0; ; ++pass) {
+                parity = 1 - parity;
+                table = DELETE[parity];
+
+                // a band whose neighborhood didn't change in the last
+                //  two passes has the same input and parity it had two
+                //  passes ago, in which it didn't delete anything
+                for (int b = 0; b < nbands; ++b) {
+                    int last = changed[b];
+                    if (b > 0) last = Math.max (last, changed[b - 1]);
+                    if (b + 1 < nbands) last = Math.max (last, changed[b + 1]);
+                    active[b] = pass < 2 || last >= pass - 2;
+                }
+
+                pool.invoke (new BandTask (this, 0, nbands, pass, false));
+                any = false;
+                for (int b = 0; b < nbands && !any; ++b)
+                    any = changed[b] == pass;
+                if (!any)
+                    break;
+                pool.invoke (new BandTask (this, 0, nbands, pass, true));
+            }
+            return thin;
+        }
+
+        // 1 bits for the pixels of word i of a row whose 3-pixel
+        //  horizontal window is all on
+        long window (int row, int i) {
+            long w = words[row + i];
+            long prev = i > 0 ? words[row + i - 1] : 0l;
+            long next = i + 1 < wordline ? words[row + i + 1] : 0l;
+            return w & ((w << 1) | (next >>> 63)) & ((w >>> 1) | (prev << 63));
+        }
+
+        void decide (int band, int pass) {
+            int y0 = band * rows, y1 = Math.min (height, y0 + rows);
+            boolean del = false;
+            Neighborhood nb = new Neighborhood (thin);
+            for (int y = y0; y < y1; ++y) {
+                int row = y * wordline;
+                nb.row (y);
+                for (int i = 0; i < wordline; ++i) {
+                    long w = words[row + i];
+                    if (w == 0)
+                        continue;
+
+                    // skip pixels whose 3x3 window is all on
+                    long interior = y > 0 && y + 1 < height
+                        ? window (row, i) & window (row - wordline, i)
+                        & window (row + wordline, i) : 0l;
+                    long d = 0l;
+                    for (long c = w & ~interior; c != 0; c &= c - 1) {
+                        int b = Long.numberOfTrailingZeros (c);
+                        if (table[nb.code ((i << 6) + 63 - b)])
+                            d |= 1l << b;
+                    }
+
+                    if (d != 0) {
+                        deleted[row + i] = d;
+                        del = true;
+                    }
+                }
+            }
+            if (del)
+                changed[band] = pass;
+        }
+
+        void apply (int band) {
+            int i0 = band * rows * wordline;
+            int i1 = Math.min (height, (band + 1) * rows) * wordline;
+            for (int i = i0; i < i1; ++i) {
+                words[i] &= ~deleted[i];
+                deleted[i] = 0l;
+            }
+        }
+    }
+
+    static class BandTask extends RecursiveAction {
+        final Bands bands;
+        final int lo, hi, pass;
+        final boolean apply;
+
+        BandTask (Bands bands, int lo, int hi, int pass, boolean apply) {
+            this.bands = bands;
+            this.lo = lo;
+            this.hi = hi;
+            this.pass = pass;
+            this.apply = apply;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll (new BandTask (bands, lo, mid, pass, apply),
+                           new BandTask (bands, mid, hi, pass, apply));
+            }
+            else if (apply) {
+                if (bands.changed[lo] == pass)
+                    bands.apply (lo);
+            }
+            else if (bands.active[lo]) {
+                bands.decide (lo, pass);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package tripod.colony;
+
+import java.util.Arrays;
+
+import tripod.colony.Grayscale.Channel;
+
+/**
+ * All thresholds of a channel at once. The pixels are counting sorted
+ * by intensity in one pass, so the pixels of intensity v are
+ * index[start[v]] .. index[start[v+1]-1] and the bitmap of any
+ * threshold is set from exactly the pixels that are on, without
+ * reading the image again. A Sweep goes further and keeps one bitmap
+ * that is updated from threshold to threshold: moving from t to t+1
+ * only touches the pixels of intensity t+1 (or t when inverted), so
+ * sweeping all thresholds costs O(pixels) in total instead of a full
+ * pass per threshold.
+ *
+ * The bitmaps are the same as the ones of Util.threshold() on the
+ * channel's raster, including the automatic inversion.
+ */
+public class ThresholdStack {
+    final Channel channel;
+    final int width, height, wordline;
+    final int[] start = new int[257]; // first index of each intensity
+    final int[] index; // bit position (y*wordline*64 + x) by intensity
+
+    public ThresholdStack (Channel channel) {
+        this.channel = channel;
+        width = channel.width;
+        height = channel.height;
+        wordline = (width + 63) >> 6;
+        if ((long) wordline * 64 * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException
+                ("Channel is too large: " + width + "x" + height);
+        }
+
+        for (int v = 0; v < 256; ++v)
+            start[v + 1] = start[v] + channel.histogram[v];
+        index = new int[start[256]];
+
+        int[] next = Arrays.copyOf (start, 256);
+        byte[] pixels = channel.pixels;
+        for (int y = 0, s = 0; y < height; ++y) {
+            int bit = y * wordline << 6;
+            for (int x = 0; x < width; ++x)
+                index[next[pixels[s++] & 0xff]++] = bit + x;
+        }
+    }
+
+    public int width () { return width; }
+    public int height () { return height; }
+
+    /*
+     * number of pixels of intensity v
+     */
+    public int count (int v) {
+        return start[clamp (v + 1)] - start[clamp (v)];
+    }
+
+    /*
+     * number of pixels below the threshold
+     */
+    public int below (int threshold) {
+        return start[clamp (threshold)];
+    }
+
+    /*
+     * number of pixels above the threshold
+     */
+    public int above (int threshold) {
+        return index.length - start[clamp (threshold + 1)];
+    }
+
+    /*
+     * number of pixels that are on at the threshold
+     */
+    public int area (int threshold) {
+        return isInverted (threshold) ? below (threshold) : above (threshold);
+    }
+
+    /*
+     * whether Util.threshold() keeps the pixels below the threshold
+     * instead of the ones above it, i.e., fewer than a third of the
+     * pixels are below it
+     */
+    public boolean isInverted (int threshold) {
+        return below (threshold) < width * height / 3;
+    }
+
+    /*
+     * same as Util.threshold (channel.raster (), threshold)
+     */
+    public Bitmap threshold (int threshold) {
+        return threshold (threshold, isInverted (threshold));
+    }
+
+    /*
+     * same as Util.threshold (channel.raster (), threshold, inverted)
+     */
+    public Bitmap threshold (int threshold, boolean inverted) {
+        Bitmap bitmap = new Bitmap (width, height);
+        if (inverted)
+            set (bitmap.words, 0, start[clamp (threshold)], true);
+        else
+            set (bitmap.words, start[clamp (threshold + 1)],
+                 index.length, true);
+        return bitmap;
+    }
+
+    /*
+     * a bitmap that follows the threshold; it starts at the given
+     * threshold
+     */
+    public Sweep sweep (int threshold) {
+        return new Sweep (threshold);
+    }
+
+    // set (or clear) the pixels index[from..to)
+    void set (long[] words, int from, int to, boolean on) {
+        if (on) {
+            for (int i = from; i < to; ++i)
+                words[index[i] >>> 6] |= Long.MIN_VALUE >>> index[i];
+        }
+        else {
+            for (int i = from; i < to; ++i)
+                words[index[i] >>> 6] &= ~(Long.MIN_VALUE >>> index[i]);
+        }
+    }
+
+    static int clamp (int v) {
+        return Math.max (0, Math.min (256, v));
+    }
+
+    /*
+     * One bitmap updated in place as the threshold moves. The bitmap
+     * returned by bitmap() (and seek()) is the same instance every time;
+     * copy it to keep the pixels of a threshold.
+     */
+    public class Sweep {
+        final Bitmap bitmap;
+        int threshold;
+        boolean inverted;
+        int from, to; // the pixels that are on are index[from..to)
+
+        Sweep (int threshold) {
+            bitmap = new Bitmap (width, height);
+            fill (threshold);
+        }
+
+        public int threshold () { return threshold; }
+        public boolean isInverted () { return inverted; }
+        public Bitmap bitmap () { return bitmap; }
+        public long area () { return to - from; }
+
+        public Bitmap next () {
+            return seek (threshold + 1);
+        }
+
+        /*
+         * move to the threshold; only the pixels between the two
+         * thresholds change unless the inversion changes
+         */
+        public Bitmap seek (int threshold) {
+            boolean inv = ThresholdStack.this.isInverted (threshold);
+            if (inv != inverted) {
+                // happens at most once in a monotone sweep
+                Arrays.fill (bitmap.words, 0l);
+                fill (threshold);
+            }
+            else if (inverted) {
+                int t = start[clamp (threshold)];
+                if (t > to) set (bitmap.words, to, t, true);
+                else set (bitmap.words, t, to, false);
+                to = t;
+            }
+            else {
+                int f = start[clamp (threshold + 1)];
+                if (f > from) set (bitmap.words, from, f, false);
+                else set (bitmap.words, f, from, true);
+                from = f;
+            }
+            this.threshold = threshold;
+            return bitmap;
+        }
+
+        void fill (int threshold) {
+            this.threshold = threshold;
+            inverted = ThresholdStack.this.isInverted (threshold);
+            if (inverted) {
+                from = 0;
+                to = start[clamp (threshold)];
+            }
+            else {
+                from = start[clamp (threshold + 1)];
+                to = index.length;
+            }
+            set (bitmap.words, from, to, true);
+        }
+    }
+}
@@ -155,15 +155,22 @@ public class ZPlane {
             if (generateBitmap) {
                 bitmap = Util.threshold
                     (raster, (int)(stats.getMeanValue()+0.5), false);
-                for (Shape s : bitmap.polyConnectedComponents()) {
-                    Rectangle r = s.getBounds();
-                    if (r.width > minPolygonSize 
-                        && r.height > minPolygonSize) {
-                        polygons.add(s);
+                // the hull of a component is one pixel narrower than
+                //  its bounds, and only the hulls we keep are built
+                ComponentTable table = bitmap.componentTable();
+                for (int k = 0; k < table.size(); ++k) {
+                    if (!table.isPolygon(k))
+                        continue;
+
+                    int w = table.xmax[k] - table.xmin[k];
+                    int h = table.ymax[k] - table.ymin[k];
+                    if (w > minPolygonSize && h > minPolygonSize) {
+                        polygons.add(table.getShape(k));
                     }
                     else {
-                        logger.warning("Polygon "
-                                       +s.getBounds()+" is too small!");
+                        logger.warning("Polygon "+new Rectangle
+                                       (table.xmin[k], table.ymin[k], w, h)
+                                       +" is too small!");
                     }
                 }
             }
@@ -240,14 +247,17 @@ public class ZPlane {
 
         Histogram hist = new Histogram 
             (100, stats.getMinValue(), stats.getMaxValue());
-        Rectangle rect = polygon.getBounds();
         Raster raster = getImage().getData();
-        for (int y = 0; y < raster.getHeight(); ++y)
-            for (int x = 0; x < raster.getWidth(); ++x)
-                if (polygon.contains(x, y)) {
-                    int pix = raster.getSample(x, y, 0);
-                    hist.increment(pix);
-                }
+        Spans spans = new Spans (polygon, new Rectangle
+                                 (0, 0, raster.getWidth(), raster.getHeight()));
+        int[] samples = new int[raster.getWidth()];
+        for (int y = spans.ymin(); y < spans.ymax(); ++y)
+            for (int i = spans.first(y); i < spans.first(y+1); ++i) {
+                int x0 = spans.x0(i), n = spans.x1(i) - x0;
+                raster.getSamples(x0, y, n, 1, 0, samples);
+                for (int k = 0; k < n; ++k)
+                    hist.increment(samples[k]);
+            }
         return hist;
     }
 